@@ -0,0 +1,101 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel that measures priority donation through locks. Each round builds
+ * a chain of <tt>Bench.chain</tt> lock queues, where the holder of each lock
+ * waits for the one before it, and puts <tt>Bench.waiters</tt> more threads
+ * on every lock. One thread on the last lock then steps its priority up to
+ * the maximum and back down, so every step has to be donated down the whole
+ * chain, and finally the locks are handed to their waiters one by one. The
+ * threads are never forked; only the scheduler's bookkeeping is timed. Run
+ * it with <tt>donation.conf</tt>.
+ */
+public class DonationKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new priority donation benchmark kernel.
+	 */
+	public DonationKernel() {
+		super();
+	}
+
+	/**
+	 * The benchmark is the only test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run the benchmark, then halt.
+	 */
+	public void run() {
+		int chain = Config.getInteger("Bench.chain", 1000);
+		int waiters = Config.getInteger("Bench.waiters", 10);
+		int rounds = Config.getInteger("Bench.rounds", 10);
+		Lib.assertTrue(chain > 0 && waiters >= 0 && rounds > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			round(chain, waiters);
+		long nanos = Math.max(System.nanoTime() - startTime, 1);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("Donation: " + rounds + " rounds of a " + chain
+				+ "-lock chain with " + waiters + " waiters per lock in "
+				+ (nanos / 1000000) + " ms, " + (nanos / rounds / 1000)
+				+ " us per round");
+
+		terminate();
+	}
+
+	private void round(int chain, int waiters) {
+		ThreadQueue[] locks = new ThreadQueue[chain];
+		KThread[] holders = new KThread[chain];
+
+		// the holder of each lock waits for the lock before it
+		for (int i = 0; i < chain; i++) {
+			locks[i] = scheduler.newThreadQueue(true);
+			holders[i] = new KThread();
+			locks[i].acquire(holders[i]);
+			if (i > 0)
+				locks[i - 1].waitForAccess(holders[i]);
+		}
+
+		for (int i = 0; i < chain; i++) {
+			for (int j = 0; j < waiters; j++) {
+				KThread waiter = new KThread();
+				scheduler.setPriority(waiter, j % 2);
+				locks[i].waitForAccess(waiter);
+			}
+		}
+
+		int base = scheduler.getEffectivePriority(holders[0]);
+		KThread top = new KThread();
+		scheduler.setPriority(top, PriorityScheduler.priorityMinimum);
+		locks[chain - 1].waitForAccess(top);
+
+		for (int p = PriorityScheduler.priorityMinimum;
+				p <= PriorityScheduler.priorityMaximum; p++)
+			step(top, p, holders[0], base);
+		for (int p = PriorityScheduler.priorityMaximum;
+				p >= PriorityScheduler.priorityMinimum; p--)
+
+			step(top, p, holders[0], base);
+
+		for (int i = 0; i < chain; i++) {
+			while (locks[i].nextThread() != null)
+				;
+		}
+	}
+
+	private void step(KThread top, int priority, KThread bottom, int base) {
+		scheduler.setPriority(top, priority);
+		Lib.assertTrue(scheduler.getEffectivePriority(bottom) == Math.max(
+				priority, base), "priority was not donated down the chain");
+	}
+}
@@ -0,0 +1,173 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * A suite of user programs to time the processor with. Each program in
+ * <tt>Bench.programs</tt>, a quoted, comma-separated list of programs with
+ * their arguments, runs alone <tt>Bench.warmup</tt> times to let the JVM
+ * compile the interpreter, then <tt>Bench.iterations</tt> times while being
+ * timed. The report gives the user instructions a run executed and the best
+ * and mean rate in millions of instructions per second, so that a change to
+ * the interpreter or the MMU has a number attached.
+ *
+ * <p>
+ * The kernel says what kind of process to run the programs in, and so whether
+ * they run on a page table or a TLB. See <tt>SuiteKernel</tt> and
+ * <tt>VMSuiteKernel</tt>.
+ */
+public abstract class Suite {
+	/**
+	 * Allocate a new suite, as configured in <tt>nachos.conf</tt>.
+	 */
+	public Suite() {
+		StringTokenizer programs = new StringTokenizer(Config.getString(
+				"Bench.programs", defaultPrograms), ",");
+		while (programs.hasMoreTokens()) {
+			StringTokenizer words = new StringTokenizer(programs.nextToken());
+			if (!words.hasMoreTokens())
+				continue;
+
+			Benchmark benchmark = new Benchmark(words.nextToken());
+
+			// like the shell, pass the program's name as argv[0]
+			benchmark.args.add(benchmark.program);
+			while (words.hasMoreTokens())
+				benchmark.args.add(words.nextToken());
+
+			benchmarks.add(benchmark);
+		}
+		Lib.assertTrue(!benchmarks.isEmpty());
+
+		warmup = Config.getInteger("Bench.warmup", 10);
+		iterations = Config.getInteger("Bench.iterations", 10);
+		Lib.assertTrue(warmup >= 0 && iterations > 0);
+	}
+
+	/**
+	 * Run every program in the suite, one at a time, and print the results.
+	 */
+	public void run() {
+		for (Benchmark benchmark : benchmarks) {
+			for (int i = 0; i < warmup; i++)
+				benchmark.run();
+
+			for (int i = 0; i < iterations; i++)
+				benchmark.time();
+		}
+
+		finished = true;
+
+		print();
+	}
+
+	/**
+	 * Allocate a process to run a program of the suite in.
+	 *
+	 * @return a new process.
+	 */
+	protected abstract UserProcess newProcess();
+
+	/**
+	 * Test whether every program in the suite has run.
+	 *
+	 * @return <tt>true</tt> if the suite is done.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	private void print() {
+		System.out.println();
+		System.out.println("Suite: " + warmup + " warmup and " + iterations
+				+ " timed runs each, "
+				+ (Machine.processor().hasTLB() ? "TLB" : "page table")
+				+ ", " + Machine.processor().getNumPhysPages() + " pages");
+
+		for (Benchmark benchmark : benchmarks) {
+			System.out.println("\t" + benchmark.name() + "\t"
+					+ (benchmark.totalInstructions / iterations)
+					+ " instructions\tbest " + mips(benchmark.bestRate)
+					+ " MIPS\tmean "
+					+ mips(benchmark.totalInstructions * 100000
+							/ Math.max(benchmark.totalNanos, 1)) + " MIPS\t"
+					+ (benchmark.totalNanos / iterations / 1000) + " us/run");
+		}
+	}
+
+	/** Format a rate in hundredths of a million instructions per second. */
+	private static String mips(long hundredths) {
+		return (hundredths / 100) + "." + (hundredths / 10 % 10)
+				+ (hundredths % 10);
+	}
+
+	/** One program of the suite, and its timings. */
+	private class Benchmark {
+		Benchmark(String program) {
+			this.program = program;
+		}
+
+		String name() {
+			String name = program;
+			for (int i = 1; i < args.size(); i++)
+				name += " " + args.get(i);
+			return name;
+		}
+
+		/**
+		 * Run the program once, and wait for it to exit.
+		 */
+		void run() {
+			UserProcess process = newProcess();
+			Lib.assertTrue(process.execute(program,
+					args.toArray(new String[args.size()])));
+			process.getThread().join();
+		}
+
+		/**
+		 * Run the program once, and add the instructions it executed and the
+		 * real time it took to the totals. Instructions that fault count too,
+		 * so a run on a TLB can vary a little with where the timer interrupts
+		 * it.
+		 */
+		void time() {
+			long startInstructions = Machine.timer().getUserTime();
+			long startNanos = System.nanoTime();
+
+			run();
+
+			long nanos = Math.max(System.nanoTime() - startNanos, 1);
+			long instructions = (Machine.timer().getUserTime()
+					- startInstructions) / Stats.UserTick;
+
+
+			bestRate = Math.max(bestRate, instructions * 100000 / nanos);
+			totalInstructions += instructions;
+			totalNanos += nanos;
+		}
+
+		final String program;
+
+		final ArrayList<String> args = new ArrayList<String>();
+
+		long bestRate = 0;
+
+		long totalInstructions = 0;
+
+		long totalNanos = 0;
+	}
+
+	private ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+	private int warmup, iterations;
+
+	private boolean finished = false;
+
+	private static final String defaultPrograms = "matmult.coff, sort.coff, "
+			+ "echo.coff one two three, cat.coff sort.c";
+}
@@ -0,0 +1,45 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A kernel that times the processor running the programs of a <tt>Suite</tt>
+ * on a page table. Run it with <tt>suite.conf</tt>.
+ */
+public class SuiteKernel extends UserKernel {
+	/**
+	 * Allocate a new suite kernel.
+	 */
+	public SuiteKernel() {
+		super();
+	}
+
+	/**
+	 * Run the suite, then halt.
+	 */
+	public void run() {
+		suite = new Suite() {
+			protected UserProcess newProcess() {
+				return new UserProcess();
+			}
+		};
+		suite.run();
+
+		terminate();
+	}
+
+	/**
+	 * Terminate this kernel, once the suite is done. Until then, the last
+	 * process exiting only ends one run of one program.
+	 */
+	public void terminate() {
+		if (suite != null && !suite.isFinished())
+			return;
+
+		super.terminate();
+	}
+
+	private Suite suite = null;
+}
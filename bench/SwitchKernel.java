@@ -0,0 +1,80 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel that measures how fast the TCBs hand the CPU from one thread to
+ * another. Two threads play ping-pong with a pair of semaphores, as in
+ * <tt>Semaphore.selfTest()</tt>, <tt>Bench.warmup</tt> times and then
+ * <tt>Bench.switches</tt> times while being timed, and the kernel prints the
+ * context switches per second of real time. Run it with <tt>switch.conf</tt>,
+ * and try <tt>TCB.spin</tt> and <tt>TCB.virtualThreads</tt>.
+ */
+public class SwitchKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new context switch benchmark kernel.
+	 */
+	public SwitchKernel() {
+		super();
+	}
+
+	/**
+	 * The benchmark is the only test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run the benchmark, then halt.
+	 */
+	public void run() {
+		final int warmup = Config.getInteger("Bench.warmup", 10000);
+		int switches = Config.getInteger("Bench.switches", 100000);
+		Lib.assertTrue(warmup >= 0 && switches > 0);
+
+		// each round trip is two context switches
+		final int rounds = (warmup + switches) / 2;
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		KThread pinger = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("ping");
+
+		// time between two forked threads, so that with virtual threads
+		// neither is the platform thread the kernel started on
+		final long[] nanos = new long[1];
+		KThread ponger = new KThread(new Runnable() {
+			public void run() {
+				long startTime = 0;
+				for (int i = 0; i < rounds; i++) {
+					if (i == warmup / 2)
+						startTime = System.nanoTime();
+
+					ping.V();
+					pong.P();
+				}
+				nanos[0] = Math.max(System.nanoTime() - startTime, 1);
+			}
+		}).setName("pong");
+
+		pinger.fork();
+		ponger.fork();
+		pinger.join();
+		ponger.join();
+
+		int timed = (rounds - warmup / 2) * 2;
+		System.out.println("Context switches: " + timed + " in "
+				+ (nanos[0] / 1000000) + " ms, "
+				+ (timed * 1000000000L / nanos[0]) + " per second, "
+				+ (nanos[0] / timed) + " ns each");
+
+		terminate();
+	}
+}
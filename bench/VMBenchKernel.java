@@ -0,0 +1,62 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel that measures how fast the processor runs user programs under
+ * demand paging, where every reference to a page not in the TLB traps to the
+ * kernel. It runs <tt>Bench.program</tt> <tt>Bench.runs</tt> times, two
+ * processes at a time so that context switches keep flushing the TLB, and
+ * prints the real time it took. Divide the user ticks and TLB misses in the
+ * statistics printed at exit by that time to get the rates.
+ */
+public class VMBenchKernel extends VMKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public VMBenchKernel() {
+		super();
+	}
+
+	/**
+	 * Run the benchmark.
+	 */
+	public void run() {
+		String program = Config.getString("Bench.program", "matmult.coff");
+		int runs = Config.getInteger("Bench.runs", 20);
+		Lib.assertTrue(runs > 0);
+
+		System.out.println("Running " + program + " " + runs + " times");
+
+		startTime = System.currentTimeMillis();
+
+		// the kernel halts when the last process exits, so never wait for
+		// one without another one running
+		VMProcess[] running = new VMProcess[2];
+		for (int i = 0; i < runs; i++) {
+			int slot = i % running.length;
+			if (running[slot] != null)
+				running[slot].getThread().join();
+
+			running[slot] = new VMProcess();
+			Lib.assertTrue(running[slot].execute(program, new String[] {}));
+		}
+
+		KThread.currentThread().finish();
+	}
+
+	/**
+	 * Print the time the benchmark took, and terminate this kernel.
+	 */
+	public void terminate() {
+		System.out.println("Elapsed: "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+
+		super.terminate();
+	}
+
+	private long startTime;
+}
@@ -0,0 +1,46 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel that times the processor running the programs of a <tt>Suite</tt>
+ * on a TLB, with demand paging. Run it with <tt>vmsuite.conf</tt>.
+ */
+public class VMSuiteKernel extends VMKernel {
+	/**
+	 * Allocate a new suite kernel.
+	 */
+	public VMSuiteKernel() {
+		super();
+	}
+
+	/**
+	 * Run the suite, then halt.
+	 */
+	public void run() {
+		suite = new Suite() {
+			protected UserProcess newProcess() {
+				return new VMProcess();
+			}
+		};
+		suite.run();
+
+		terminate();
+	}
+
+	/**
+	 * Terminate this kernel, once the suite is done. Until then, the last
+	 * process exiting only ends one run of one program.
+	 */
+	public void terminate() {
+		if (suite != null && !suite.isFinished())
+			return;
+
+		super.terminate();
+	}
+
+	private Suite suite = null;
+}
@@ -0,0 +1,214 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves the state of the machine to a file, and loads it back, for
+ * <tt>Machine.checkpoint()</tt> and <tt>Machine.restore()</tt>.
+ *
+ * <p>
+ * A checkpoint holds the stats, a new random seed, the time and type
+ * of each pending interrupt, the registers and TLB of the boot CPU, the pages
+ * of main memory that are not all zero, and an opaque block of kernel state.
+ * The file is written and read through a memory mapping, so a restore costs
+ * little more than copying the pages in use.
+ *
+ * <p>
+ * Interrupt handlers and device state can't be saved. Instead, a restore
+ * gives the interrupts that the freshly booted devices have scheduled the
+ * times saved for interrupts of the same type, and drops saved interrupts
+ * that no device has scheduled yet. So a checkpoint should only be taken
+ * while the devices are idle, such as when a user program enters the kernel
+ * with no I/O in progress.
+ */
+final class Checkpoint {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Checkpoint() {
+	}
+
+	/**
+	 * Save the state of the machine.
+	 *
+	 * @param file the file to write.
+	 * @param stats the machine's stats.
+	 * @param kernelState the state of the kernel.
+	 */
+	static void save(File file, Stats stats, byte[] kernelState)
+			throws IOException {
+		Processor processor = Machine.processor();
+		int numPhysPages = processor.getNumPhysPages();
+		ByteBuffer memory = processor.getMemoryBuffer();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		writeStats(out, stats);
+
+		out.writeLong(Lib.reseedRandom());
+
+		Machine.interrupt().writeCheckpoint(out);
+		processor.writeCheckpoint(out);
+		out.flush();
+
+		boolean[] used = new boolean[numPhysPages];
+		int numUsed = 0;
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			for (int i = 0; i < Processor.pageSize; i += 8) {
+				if (memory.getLong(ppn * Processor.pageSize + i) != 0) {
+					used[ppn] = true;
+					numUsed++;
+					break;
+				}
+			}
+		}
+
+		long length = 4 * 5 + bytes.size() + 4 + kernelState.length + 4
+				+ (long) numUsed * (4 + Processor.pageSize) + 4;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, length);
+
+			map.putInt(magic);
+			map.putInt(version);
+			map.putInt(numPhysPages);
+			map.putInt(Processor.pageSize);
+
+			map.putInt(bytes.size());
+			map.put(bytes.toByteArray());
+
+			map.putInt(kernelState.length);
+			map.put(kernelState);
+
+			map.putInt(numUsed);
+			for (int ppn = 0; ppn < numPhysPages; ppn++) {
+				if (!used[ppn])
+					continue;
+
+				ByteBuffer page = memory.duplicate();
+				page.limit((ppn + 1) * Processor.pageSize);
+				page.position(ppn * Processor.pageSize);
+
+				map.putInt(ppn);
+				map.put(page);
+			}
+
+			map.putInt(magic);
+			map.force();
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Load the state of the machine.
+	 *
+	 * @param file the file to read.
+	 * @param stats the machine's stats.
+	 * @return the state of the kernel.
+	 */
+	static byte[] restore(File file, Stats stats) throws IOException {
+		Processor processor = Machine.processor();
+		int numPhysPages = processor.getNumPhysPages();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer map;
+		try {
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		}
+		finally {
+			raf.close();
+		}
+
+		if (map.getInt() != magic || map.getInt() != version)
+			throw new IOException("not a checkpoint: " + file);
+		if (map.getInt() != numPhysPages
+				|| map.getInt() != Processor.pageSize)
+			throw new IOException("checkpoint is for a different machine");
+
+		byte[] machineState = new byte[map.getInt()];
+		map.get(machineState);
+
+		byte[] kernelState = new byte[map.getInt()];
+		map.get(kernelState);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				machineState));
+
+		long bootTicks = stats.totalTicks;
+		readStats(in, stats);
+
+		Lib.reseedRandom(in.readLong());
+
+		Machine.interrupt().readCheckpoint(in, bootTicks);
+		processor.readCheckpoint(in);
+
+		processor.zeroPhysicalMemory(0, numPhysPages * Processor.pageSize);
+
+		byte[] page = new byte[Processor.pageSize];
+		for (int numUsed = map.getInt(); numUsed > 0; numUsed--) {
+			int ppn = map.getInt();
+			Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+			map.get(page);
+			processor.writePhysicalMemory(ppn * Processor.pageSize, page, 0,
+					Processor.pageSize);
+		}
+
+		if (map.getInt() != magic)
+			throw new IOException("truncated checkpoint: " + file);
+
+		return kernelState;
+	}
+
+	private static void writeStats(DataOutputStream out, Stats stats)
+			throws IOException {
+		out.writeLong(stats.totalTicks);
+		out.writeLong(stats.kernelTicks);
+		out.writeLong(stats.userTicks);
+		out.writeInt(stats.numDiskReads);
+		out.writeInt(stats.numDiskWrites);
+		out.writeInt(stats.numConsoleReads);
+		out.writeInt(stats.numConsoleWrites);
+		out.writeInt(stats.numPageFaults);
+		out.writeInt(stats.numTLBMisses);
+		out.writeInt(stats.numPacketsSent);
+		out.writeInt(stats.numPacketsReceived);
+	}
+
+	private static void readStats(DataInputStream in, Stats stats)
+			throws IOException {
+		stats.totalTicks = in.readLong();
+		stats.kernelTicks = in.readLong();
+		stats.userTicks = in.readLong();
+		stats.numDiskReads = in.readInt();
+		stats.numDiskWrites = in.readInt();
+		stats.numConsoleReads = in.readInt();
+		stats.numConsoleWrites = in.readInt();
+		stats.numPageFaults = in.readInt();
+		stats.numTLBMisses = in.readInt();
+		stats.numPacketsSent = in.readInt();
+		stats.numPacketsReceived = in.readInt();
+	}
+
+	private static final int magic = 0x4E434B50; // "NCKP"
+
+	private static final int version = 1;
+}
@@ -0,0 +1,290 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+
+/**
+ * Records the inputs that make a Nachos run nondeterministic, or plays them
+ * back, so that a run can be reproduced exactly. Enabled by setting
+ * <tt>Machine.record</tt> or <tt>Machine.replay</tt> to the name of a log file.
+ *
+ * <p>
+ * Everything else the machine does follows from the random seed, which goes
+ * in the header of the log, and the inputs logged here: each byte read from
+ * the console, each packet that arrives from the network, and the network
+ * link address. Each one is logged with the tick at which a device took it,
+ * as a varint delta from the last one, so polls that find nothing cost
+ * nothing. On replay, a device gets the logged input at exactly the logged
+ * tick, and <tt>assertTrue()</tt> fails as soon as the run diverges.
+ *
+ * <p>
+ * Runs with secondary CPUs can be recorded and replayed too, since the kernel
+ * collects their quanta at times set by the simulation, not by the host.
+ */
+final class InputLog {
+	/**
+	 * Open a log for recording or for replay.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param file the log file.
+	 * @param replay <tt>true</tt> to play the log back.
+	 * @param randomSeed the random seed to save when recording.
+	 */
+	InputLog(Privilege privilege, final File file, boolean replay,
+			long randomSeed) {
+		this.privilege = privilege;
+		this.replay = replay;
+
+		try {
+			if (replay) {
+				in = (DataInputStream) privilege
+						.doPrivileged(new PrivilegedOpen(file, false));
+				if (in.readInt() != magic)
+					throw new IOException("not an input log: " + file);
+
+				Lib.reseedRandom(in.readLong());
+				readEvent();
+			}
+			else {
+				out = (DataOutputStream) privilege
+						.doPrivileged(new PrivilegedOpen(file, true));
+				out.writeInt(magic);
+				out.writeLong(randomSeed);
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("can't open input log " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Test whether this log is being played back.
+	 *
+	 * @return <tt>true</tt> if devices should take their input from this log.
+	 */
+	boolean replaying() {
+		return replay;
+	}
+
+	/**
+	 * Record a byte read from the console.
+	 *
+	 * @param c the byte.
+	 */
+	void recordConsole(int c) {
+		writeEvent(eventConsole);
+		write(c);
+	}
+
+	/**
+	 * Return the byte the console read at this tick, if any.
+	 *
+	 * @return the byte, or -1 if the console found nothing at this tick.
+	 */
+	int replayConsole() {
+		if (!due(eventConsole))
+			return -1;
+
+		int c = value[0] & 0xFF;
+		readEvent();
+		return c;
+	}
+
+	/**
+	 * Record a packet that arrived from the network.
+	 *
+	 * @param packetBytes the contents of the packet.
+	 */
+	void recordPacket(byte[] packetBytes) {
+		writeEvent(eventPacket);
+		write(packetBytes);
+	}
+
+	/**
+	 * Return the packet that arrived at this tick, if any.
+	 *
+	 * @return the contents of the packet, or <tt>null</tt> if none arrived.
+	 */
+	byte[] replayPacket() {
+		if (!due(eventPacket))
+			return null;
+
+		byte[] packetBytes = value;
+		readEvent();
+		return packetBytes;
+	}
+
+	/**
+	 * Record the address of the network link.
+	 *
+	 * @param linkAddress the link address.
+	 */
+	void recordLinkAddress(int linkAddress) {
+		writeEvent(eventLinkAddress);
+		write(linkAddress);
+	}
+
+	/**
+	 * Return the recorded address of the network link.
+	 *
+	 * @return the link address.
+	 */
+	int replayLinkAddress() {
+		Lib.assertTrue(due(eventLinkAddress),
+				"replay diverged: no network link address logged");
+
+		int linkAddress = value[0] & 0xFF;
+		readEvent();
+		return linkAddress;
+	}
+
+	private void write(int value) {
+		write(new byte[] { (byte) value });
+	}
+
+	private void writeEvent(int kind) {
+		Lib.assertTrue(!replay);
+
+		long now = privilege.stats.totalTicks;
+		try {
+			out.writeByte(kind);
+			writeVarLong(now - lastTick);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("can't write input log: " + e);
+		}
+		lastTick = now;
+	}
+
+	private void write(byte[] value) {
+		try {
+			writeVarLong(value.length);
+			out.write(value);
+
+			// inputs are rare, and the log must survive the run dying
+			out.flush();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("can't write input log: " + e);
+		}
+	}
+
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Test whether the next logged input is of the specified kind and due at
+	 * this tick.
+	 */
+	private boolean due(int kind) {
+		Lib.assertTrue(replay);
+
+		long now = privilege.stats.totalTicks;
+		if (nextTick > now)
+			return false;
+
+		// another device may take its input at the same tick
+		Lib.assertTrue(nextTick == now, "replay diverged at tick " + now);
+		return nextKind == kind;
+	}
+
+	private void readEvent() {
+		try {
+			int kind = in.read();
+			if (kind < 0) {
+				nextKind = eventNone;
+				nextTick = Long.MAX_VALUE;
+				return;
+			}
+
+			nextKind = kind;
+			nextTick += readVarLong();
+			value = new byte[(int) readVarLong()];
+			in.readFully(value);
+		}
+		catch (EOFException e) {
+			Lib.assertNotReached("truncated input log");
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("can't read input log: " + e);
+		}
+	}
+
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private static class PrivilegedOpen implements PrivilegedAction {
+		PrivilegedOpen(File file, boolean write) {
+			this.file = file;
+			this.write = write;
+		}
+
+		public Object run() {
+			try {
+				if (write)
+					return new DataOutputStream(new BufferedOutputStream(
+							new FileOutputStream(file)));
+				else
+					return new DataInputStream(new BufferedInputStream(
+							new FileInputStream(file)));
+			}
+			catch (IOException e) {
+				Lib.assertNotReached("can't open input log " + file + ": "
+						+ e);
+				return null;
+			}
+		}
+
+		private File file;
+
+		private boolean write;
+	}
+
+	private Privilege privilege;
+
+	private boolean replay;
+
+	private DataOutputStream out = null;
+
+	private DataInputStream in = null;
+
+	/** The tick of the last input recorded. */
+	private long lastTick = 0;
+
+	/** The next input to play back. */
+	private int nextKind;
+
+	private long nextTick = 0;
+
+	private byte[] value;
+
+	private static final int eventNone = -1, eventConsole = 0, eventPacket = 1,
+			eventLinkAddress = 2;
+
+	private static final int magic = 0x4E494C47; // "NILG"
+}
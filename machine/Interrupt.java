@@ -4,9 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +40,20 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * Pending interrupts are kept in a hierarchical timing wheel keyed by the
+ * tick they are due at, so scheduling one is O(1), and the earliest one is
+ * cached, so checking whether anything is due on each tick is O(1) too.
+ * 
+ * <p>
+ * Secondary CPUs run user code on their own host threads, but simulated time
+ * stays the boot CPU's alone, so that it never depends on how fast the host
+ * runs them. A quantum started at time <i>t</i> with a limit of <i>n</i>
+ * instructions is collected at the first tick at or after <i>t</i> +
+ * <i>n</i>, or sooner if the boot CPU goes idle, in which case the boot CPU
+ * waits for it on the host. Either way, collecting it advances the time by
+ * the user ticks it ran, and then its stop interrupt is due.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +68,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		clearPending();
 	}
 
 	/**
@@ -83,6 +99,50 @@ public final class Interrupt {
 		setStatus(status);
 	}
 
+	/**
+	 * Skip the time an idle loop would spend waiting for the next interrupt.
+	 * Call this with interrupts disabled, when nothing but an interrupt can
+	 * give the CPU something to do, just before switching to a thread that
+	 * only yields. Each time that thread enables interrupts, the time
+	 * advances by one kernel tick, and most of its iterations find nothing
+	 * due. This method advances the time by as many whole kernel ticks as
+	 * those iterations would have, so the next <tt>enable()</tt> invokes the
+	 * interrupt at the same time it would have.
+	 * 
+	 * <p>
+	 * Nothing is skipped from inside an interrupt handler, since the handler
+	 * may still schedule interrupts relative to the current time, or if no
+	 * interrupt is pending. If a secondary CPU is running, the first quantum
+	 * due is collected instead of skipping, so its stop interrupt is due at
+	 * the next tick.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (dispatching)
+			return;
+
+		if (!running.isEmpty()) {
+			collect();
+			return;
+		}
+
+		if (earliest == null)
+			return;
+
+		Stats stats = privilege.stats;
+		long skipped = (earliest.time - stats.totalTicks - 1)
+				/ Stats.KernelTick;
+		if (skipped <= 0)
+			return;
+
+		Lib.debug(dbgInt, "Idling for " + (Stats.KernelTick * skipped)
+				+ " ticks");
+
+		stats.kernelTicks += Stats.KernelTick * skipped;
+		stats.totalTicks += Stats.KernelTick * skipped;
+	}
+
 	/**
 	 * Set the interrupt status to be enabled (<tt>true</tt>) or disabled (
 	 * <tt>false</tt>) and return the previous status. If the interrupt status
@@ -123,34 +183,115 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		addPending(toOccur);
 	}
 
-	private void tick(boolean inKernelMode) {
-		Stats stats = privilege.stats;
+	private void startCPU(String type, int limit) {
+		Quantum quantum = new Quantum(type, privilege.stats.totalTicks
+				+ (long) Stats.UserTick * limit);
 
-		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+		// keep the quanta in the order they are due
+		synchronized (running) {
+			int i = running.size();
+			while (i > 0 && running.get(i - 1).due > quantum.due)
+				i--;
+			running.add(i, quantum);
 		}
-		else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+	}
+
+	private void stopCPU(String type, int executed, Runnable handler) {
+		synchronized (running) {
+			for (Quantum quantum : running) {
+				if (quantum.type.equals(type) && quantum.handler == null) {
+					quantum.executed = executed;
+					quantum.handler = handler;
+					running.notifyAll();
+					return;
+				}
+			}
 		}
 
+		Lib.assertNotReached("no " + type + " quantum is running");
+	}
+
+	/**
+	 * Wait for the first quantum due to stop, charge the user ticks it ran,
+	 * and make its stop interrupt pending, due now.
+	 */
+	private void collect() {
+		Quantum quantum;
+		synchronized (running) {
+			quantum = running.get(0);
+			while (quantum.handler == null) {
+				try {
+					running.wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+			running.remove(0);
+		}
+
+		charge(false, quantum.executed);
+
+		Lib.debug(dbgInt, "Collecting the " + quantum.type
+				+ " interrupt handler at time = " + privilege.stats.totalTicks
+				+ ", after " + quantum.executed + " instructions");
+
+		addPending(allocate(privilege.stats.totalTicks, quantum.type,
+				quantum.handler));
+	}
+
+	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
+		Stats stats = privilege.stats;
+
+		charge(inKernelMode, count);
+
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
+		while (!running.isEmpty() && running.get(0).due <= stats.totalTicks)
+			collect();
+
 		enabled = false;
+		dispatching = true;
 		checkIfDue();
+		dispatching = false;
 		enabled = true;
 	}
 
+	/**
+	 * Advance the time by <i>count</i> kernel or user ticks.
+	 */
+	private void charge(boolean inKernelMode, int count) {
+		Stats stats = privilege.stats;
+
+		if (inKernelMode) {
+			stats.kernelTicks += Stats.KernelTick * count;
+			stats.totalTicks += Stats.KernelTick * count;
+		}
+		else {
+			stats.userTicks += Stats.UserTick * count;
+			stats.totalTicks += Stats.UserTick * count;
+		}
+	}
+
+	private long nextInterruptTime() {
+		if (earliest == null)
+			return Long.MAX_VALUE;
+
+		return earliest.time;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,18 +300,13 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (earliest == null || earliest.time > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (earliest != null && earliest.time <= time) {
+			PendingInterrupt next = removeEarliest();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -179,19 +315,289 @@ public final class Interrupt {
 
 			Lib.debug(dbgInt, "  " + next.type);
 
-			next.handler.run();
+			// the handler can reuse the entry to schedule its next interrupt
+			Runnable handler = next.handler;
+			release(next);
+
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Save the type and time of each pending interrupt to a checkpoint.
+	 */
+	void writeCheckpoint(DataOutput out) throws IOException {
+		Lib.assertTrue(running.isEmpty(), "a CPU is still running");
+
+		out.writeInt(numPending);
+		for (PendingInterrupt toOccur : pendingInOrder()) {
+			out.writeUTF(toOccur.type);
+			out.writeLong(toOccur.time);
+		}
+	}
+
+	/**
+	 * Give the pending interrupts the times saved in a checkpoint. Each saved
+	 * interrupt is matched with the earliest pending interrupt of the same
+	 * type, which the devices scheduled when the machine was started. A saved
+	 * interrupt with no match was scheduled by a handler that ran before the
+	 * checkpoint, such as the <tt>timerAG</tt> interrupt the timer schedules a
+	 * tick after each timer interrupt. Only that handler knew what to do with
+	 * it, so it is dropped. Pending interrupts with no match are kept, the
+	 * same distance in the future of the restored clock as they were of the
+	 * old one.
+	 * 
+	 * @param bootTicks the time before the stats were restored.
+	 */
+	void readCheckpoint(DataInput in, long bootTicks) throws IOException {
+		ArrayList<PendingInterrupt> unmatched = pendingInOrder();
+		clearPending();
+
+		for (int i = in.readInt(); i > 0; i--) {
+			String type = in.readUTF();
+			long time = in.readLong();
+
+			PendingInterrupt toOccur = null;
+			for (PendingInterrupt candidate : unmatched) {
+				if (candidate.type.equals(type)) {
+					toOccur = candidate;
+					break;
+				}
+			}
+			if (toOccur == null) {
+				Lib.debug(dbgInt, "Dropping the " + type
+						+ " interrupt handler at time = " + time);
+				continue;
+			}
+
+			unmatched.remove(toOccur);
+			toOccur.time = time;
+			addPending(toOccur);
+
+			Lib.debug(dbgInt, "Restoring the " + type
+					+ " interrupt handler at time = " + time);
+		}
+
+		// e.g. a console that had already received its next byte when the
+		// checkpoint was written still has to receive one now
+		for (PendingInterrupt toOccur : unmatched) {
+			toOccur.time = privilege.stats.totalTicks
+					+ Math.max(toOccur.time - bootTicks, 0);
+			addPending(toOccur);
+
+			Lib.debug(dbgInt, "Moving the " + toOccur.type
+					+ " interrupt handler to time = " + toOccur.time);
+		}
+	}
+
+	/**
+	 * Allocate a pending interrupt, reusing a released one if there is one.
+	 */
+	private PendingInterrupt allocate(long time, String type,
+			Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+		if (toOccur == null)
+			return new PendingInterrupt(time, type, handler);
+
+		freeList = toOccur.next;
+		toOccur.next = null;
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		return toOccur;
+	}
+
+	/**
+	 * Return a pending interrupt that has been removed from the wheel to the
+	 * free list.
+	 */
+	private void release(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.prev = null;
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
+	private void addPending(PendingInterrupt toOccur) {
+		Lib.assertTrue(toOccur.time >= wheelTime);
+
+		insert(toOccur);
+		numPending++;
+
+		if (earliest == null || toOccur.compareTo(earliest) < 0)
+			earliest = toOccur;
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the wheel.
+	 */
+	private PendingInterrupt removeEarliest() {
+		PendingInterrupt toOccur = earliest;
+
+		advance(toOccur.time);
+		Lib.assertTrue(toOccur.level == 0);
+
+		unlink(toOccur);
+		numPending--;
+
+		earliest = findEarliest();
+		return toOccur;
+	}
+
+	/**
+	 * Put a pending interrupt in its slot: on the lowest level whose slots
+	 * are big enough that the interrupt's slot is after the slot holding
+	 * <tt>wheelTime</tt>. Each slot is kept in order of id, so that
+	 * interrupts due at the same tick are invoked in the order they were
+	 * scheduled.
+	 */
+	private void insert(PendingInterrupt toOccur) {
+		long differ = toOccur.time ^ wheelTime;
+		int level = (differ == 0) ? 0 : (63 - Long
+				.numberOfLeadingZeros(differ)) / wheelBits;
+		int slot = (int) (toOccur.time >>> (level * wheelBits)) & wheelMask;
+
+		toOccur.level = level;
+		toOccur.slot = slot;
+
+		PendingInterrupt after = tails[level][slot];
+		while (after != null && after.id > toOccur.id)
+			after = after.prev;
+
+		toOccur.prev = after;
+		if (after == null) {
+			toOccur.next = heads[level][slot];
+			heads[level][slot] = toOccur;
+		}
+		else {
+			toOccur.next = after.next;
+			after.next = toOccur;
+		}
+
+		if (toOccur.next == null)
+			tails[level][slot] = toOccur;
+		else
+			toOccur.next.prev = toOccur;
+
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(PendingInterrupt toOccur) {
+		int level = toOccur.level, slot = toOccur.slot;
+
+		if (toOccur.prev == null)
+			heads[level][slot] = toOccur.next;
+		else
+			toOccur.prev.next = toOccur.next;
+
+		if (toOccur.next == null)
+			tails[level][slot] = toOccur.prev;
+		else
+			toOccur.next.prev = toOccur.prev;
+
+		toOccur.prev = toOccur.next = null;
+
+		if (heads[level][slot] == null)
+			occupied[level] &= ~(1L << slot);
+	}
+
+	/**
+	 * Move <tt>wheelTime</tt> forward to the time of the earliest pending
+	 * interrupt. Interrupts in the slot that now holds <tt>wheelTime</tt>, on
+	 * the highest level whose slot changed, are spread over the lower levels.
+	 * No other slot needs to change, since nothing is due before <i>time</i>.
+	 */
+	private void advance(long time) {
+		long differ = time ^ wheelTime;
+		wheelTime = time;
+
+		if (differ == 0)
+			return;
+
+		int level = (63 - Long.numberOfLeadingZeros(differ)) / wheelBits;
+		if (level == 0)
+			return;
+
+		int slot = (int) (time >>> (level * wheelBits)) & wheelMask;
+
+		PendingInterrupt toOccur = heads[level][slot];
+		heads[level][slot] = tails[level][slot] = null;
+		occupied[level] &= ~(1L << slot);
+
+		while (toOccur != null) {
+			PendingInterrupt next = toOccur.next;
+			insert(toOccur);
+			toOccur = next;
+		}
+	}
+
+	/**
+	 * Find the earliest pending interrupt. Every interrupt on a level is due
+	 * before any on the levels above it, and a slot on level 0 holds
+	 * interrupts due at a single tick, so only the first slot in use on the
+	 * lowest level in use has to be looked at.
+	 */
+	private PendingInterrupt findEarliest() {
+		for (int level = 0; level < wheelLevels; level++) {
+			if (occupied[level] == 0)
+				continue;
+
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			PendingInterrupt first = heads[level][slot];
+
+			if (level > 0) {
+				PendingInterrupt toOccur = first.next;
+				for (; toOccur != null; toOccur = toOccur.next) {
+					if (toOccur.compareTo(first) < 0)
+						first = toOccur;
+				}
+			}
+
+			return first;
+		}
+
+		return null;
+	}
+
+	private void clearPending() {
+		heads = new PendingInterrupt[wheelLevels][wheelSize];
+		tails = new PendingInterrupt[wheelLevels][wheelSize];
+		occupied = new long[wheelLevels];
+		wheelTime = 0;
+		numPending = 0;
+		earliest = null;
+	}
+
+	/**
+	 * Return every pending interrupt, earliest first.
+	 */
+	private ArrayList<PendingInterrupt> pendingInOrder() {
+		ArrayList<PendingInterrupt> list = new ArrayList<PendingInterrupt>(
+				numPending);
+
+		for (int level = 0; level < wheelLevels; level++) {
+			for (int slot = 0; slot < wheelSize; slot++) {
+				PendingInterrupt toOccur = heads[level][slot];
+				for (; toOccur != null; toOccur = toOccur.next)
+					list.add(toOccur);
+			}
+		}
+
+		Collections.sort(list);
+		return list;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		for (PendingInterrupt toOccur : pendingInOrder()) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,7 +605,7 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
 		PendingInterrupt(long time, String type, Runnable handler) {
 			this.time = time;
 			this.type = type;
@@ -207,9 +613,7 @@ public final class Interrupt {
 			this.id = numPendingInterruptsCreated++;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -230,6 +634,12 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** Where this interrupt is in the wheel. */
+		private int level, slot;
+
+		/** The neighbors in its slot, or the next free entry. */
+		private PendingInterrupt prev, next;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +648,55 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/** The time the wheel's slots are relative to. Nothing is due before it. */
+	private long wheelTime;
+
+	/** The first and last interrupt in each slot of each level. */
+	private PendingInterrupt[][] heads, tails;
+
+	/** For each level, a bit for each slot in use. */
+	private long[] occupied;
+
+	private int numPending;
+
+	/** Whether interrupt handlers are being invoked. */
+	private boolean dispatching = false;
+
+	/** The earliest pending interrupt, or <tt>null</tt> if there are none. */
+	private PendingInterrupt earliest;
+
+	/** Pending interrupts that have been invoked, to be reused. */
+	private PendingInterrupt freeList = null;
+
+	private static final int wheelBits = 6, wheelSize = 1 << wheelBits,
+			wheelMask = wheelSize - 1, wheelLevels = (64 + wheelBits - 1)
+					/ wheelBits;
+
+	/**
+	 * A quantum of user code running on a secondary CPU. The CPU's host
+	 * thread fills in the instructions it ran and the handler when it stops.
+	 */
+	private static class Quantum {
+		Quantum(String type, long due) {
+			this.type = type;
+			this.due = due;
+		}
+
+		String type;
+
+		/** The time by which the quantum is collected, even if not idle. */
+		long due;
+
+		int executed;
+
+		Runnable handler = null;
+	}
+
+	/**
+	 * The quanta running on secondary CPUs, in the order they are due. Only
+	 * the kernel's host thread changes the list, always holding its lock.
+	 */
+	private ArrayList<Quantum> running = new ArrayList<Quantum>();
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +708,21 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
+
+		public void startCPU(String type, int limit) {
+			Interrupt.this.startCPU(type, limit);
+		}
+
+		public void stopCPU(String type, int executed, Runnable handler) {
+			Interrupt.this.stopCPU(type, executed, handler);
+		}
 	}
 }
@@ -44,6 +44,29 @@ public final class Lib {
 		random = new Random(randomSeed);
 	}
 
+	/**
+	 * Reseed the random number generator with a seed drawn from it, and return
+	 * the seed. A checkpoint saves the seed, so that a machine restored from
+	 * it draws the same numbers as the one that wrote it.
+	 * 
+	 * @return the new seed.
+	 */
+	static long reseedRandom() {
+		long seed = random.nextLong();
+		random.setSeed(seed);
+		return seed;
+	}
+
+	/**
+	 * Reseed the random number generator with a seed saved by
+	 * <tt>reseedRandom()</tt>.
+	 * 
+	 * @param seed the seed.
+	 */
+	static void reseedRandom(long seed) {
+		random.setSeed(seed);
+	}
+
 	/**
 	 * Return a random integer between 0 and <i>range - 1</i>. Must not be
 	 * called before <tt>seedRandom()</tt> seeds the random number generator.
@@ -57,6 +80,28 @@ public final class Lib {
 		return random.nextInt(range);
 	}
 
+	/**
+	 * Return a random long between 0 and <i>range - 1</i>. A range that fits
+	 * in an <tt>int</tt> draws the same number as <tt>random(int)</tt>.
+	 * 
+	 * @param range a positive value specifying the number of possible return
+	 * values.
+	 * @return a random long in the specified range.
+	 */
+	public static long random(long range) {
+		assertTrue(range > 0);
+		if (range <= Integer.MAX_VALUE)
+			return random.nextInt((int) range);
+
+		// reject the top partial copy of the range, as Random.nextInt() does
+		long bits, value;
+		do {
+			bits = random.nextLong() >>> 1;
+			value = bits % range;
+		} while (bits - value + (range - 1) < 0);
+		return value;
+	}
+
 	/**
 	 * Return a random double between 0.0 (inclusive) and 1.0 (exclusive).
 	 * 
@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,10 +100,72 @@ public final class Machine {
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
+		metrics.snapshot();
 		stats.print();
 		terminate();
 	}
 
+	/**
+	 * Save the state of the machine, along with the specified kernel state, to
+	 * a checkpoint file in the test directory. The checkpoint holds the
+	 * stats, the pending interrupts, the registers and TLB of the boot CPU, and
+	 * main memory. Must be called from the kernel while only periodic device
+	 * interrupts are pending, such as when a user thread enters the kernel
+	 * with no I/O in progress.
+	 * 
+	 * @param fileName the name of the checkpoint file.
+	 * @param kernelState whatever the kernel needs to carry on from this point.
+	 * @return <tt>true</tt> if the checkpoint was written.
+	 */
+	public static boolean checkpoint(final String fileName,
+			final byte[] kernelState) {
+		Lib.assertTrue(processor != null);
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException {
+					Checkpoint.save(new File(testDirectory, fileName), stats,
+							kernelState);
+					return null;
+				}
+			});
+		}
+		catch (PrivilegedActionException e) {
+			System.out.println("\ncheckpoint failed: " + e.getException());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Load the state of the machine from a checkpoint file written by
+	 * <tt>checkpoint()</tt>, and return the kernel state saved with it. Must
+	 * be called by the kernel before it runs any user code.
+	 * 
+	 * @param fileName the name of the checkpoint file.
+	 * @return the kernel state passed to <tt>checkpoint()</tt>.
+	 */
+	public static byte[] restore(final String fileName) {
+		Lib.assertTrue(processor != null);
+
+		PrivilegedExceptionAction action = new PrivilegedExceptionAction() {
+			public Object run() throws IOException {
+				return Checkpoint.restore(new File(testDirectory, fileName),
+						stats);
+			}
+		};
+
+		try {
+			return (byte[]) privilege.doPrivileged(action);
+		}
+		catch (PrivilegedActionException e) {
+			Lib.assertNotReached("can't restore " + fileName + ": "
+					+ e.getException());
+			return null;
+		}
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -169,6 +234,21 @@ public final class Machine {
 
 	private static void createDevices() {
 		interrupt = new Interrupt(privilege);
+
+		// must come before the random seed or any input is used
+		String recordFileName = Config.getString("Machine.record");
+		String replayFileName = Config.getString("Machine.replay");
+		Lib.assertTrue(recordFileName == null || replayFileName == null,
+				"can't record and replay at the same time");
+		if (recordFileName != null)
+			inputLog = new InputLog(privilege, new File(recordFileName),
+					false, randomSeed);
+		else if (replayFileName != null)
+			inputLog = new InputLog(privilege, new File(replayFileName),
+					true, randomSeed);
+
+		metrics = new Metrics(privilege);
+
 		timer = new Timer(privilege);
 
 		if (Config.getBoolean("Machine.bank"))
@@ -178,6 +258,14 @@ public final class Machine {
 			if (numPhysPages == -1)
 				numPhysPages = Config.getInteger("Processor.numPhysPages");
 			processor = new Processor(privilege, numPhysPages);
+
+			numCPUs = Config.getInteger("Machine.numCPUs", 1);
+			Lib.assertTrue(numCPUs > 0);
+
+			processors = new Processor[numCPUs];
+			processors[0] = processor;
+			for (int i = 1; i < numCPUs; i++)
+				processors[i] = new Processor(processor, i);
 		}
 
 		if (Config.getBoolean("Machine.console"))
@@ -312,6 +400,15 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Return the registry the kernel's metrics are kept in.
+	 * 
+	 * @return the metrics registry.
+	 */
+	public static Metrics metrics() {
+		return metrics;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
@@ -331,6 +428,40 @@ public final class Machine {
 		return processor;
 	}
 
+	/**
+	 * Return the specified MIPS processor. CPU 0 is the boot CPU, the one
+	 * returned by <tt>processor()</tt>, which runs the kernel; the others can
+	 * only run user code dispatched to them by the kernel.
+	 * 
+	 * @param cpuNumber the number of the CPU.
+	 * @return the MIPS processor.
+	 */
+	public static Processor processor(int cpuNumber) {
+		Lib.assertTrue(cpuNumber >= 0 && cpuNumber < numCPUs);
+
+		return processors[cpuNumber];
+	}
+
+	/**
+	 * Return the number of MIPS processors, including the boot CPU.
+	 * 
+	 * @return the number of CPUs, or 0 if there is no processor.
+	 */
+	public static int numCPUs() {
+		return numCPUs;
+	}
+
+	/**
+	 * Return the log of nondeterministic inputs, for the devices to record
+	 * their input to or play it back from.
+	 * 
+	 * @return the input log, or <tt>null</tt> if the inputs are not being
+	 * recorded or played back.
+	 */
+	static InputLog inputLog() {
+		return inputLog;
+	}
+
 	/**
 	 * Return the hardware console.
 	 * 
@@ -371,10 +502,18 @@ public final class Machine {
 
 	private static Timer timer = null;
 
+	private static Metrics metrics = null;
+
 	private static ElevatorBank bank = null;
 
 	private static Processor processor = null;
 
+	private static Processor[] processors = null;
+
+	private static int numCPUs = 0;
+
+	private static InputLog inputLog = null;
+
 	private static SerialConsole console = null;
 
 	private static FileSystem stubFileSystem = null;
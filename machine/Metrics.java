@@ -0,0 +1,441 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.PrivilegedAction;
+import java.util.LinkedHashMap;
+
+/**
+ * A registry of counters, gauges and latency histograms that the kernel's
+ * subsystems keep, beyond the fixed set in <tt>Stats</tt>.
+ *
+ * <p>
+ * A subsystem registers each metric once, by name, and keeps the object it
+ * gets back; registering a name again returns the same metric, so every
+ * instance of a class can share it. Recording a value is a couple of field
+ * updates and never allocates, so metrics can stay on under load.
+ *
+ * <p>
+ * If <tt>Metrics.file</tt> is set, a snapshot of every metric, along with
+ * the machine's stats, is appended to that file every <tt>Metrics.interval</tt>
+ * ticks and when the machine halts. <tt>Metrics.format</tt> is either
+ * <tt>json</tt>, for one JSON object per line keyed by the tick, or
+ * <tt>prometheus</tt>, for the Prometheus text format.
+ */
+public final class Metrics {
+	/**
+	 * Allocate the metrics registry, and start exporting snapshots if a file
+	 * is configured.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	Metrics(Privilege privilege) {
+		this.privilege = privilege;
+
+		String fileName = Config.getString("Metrics.file");
+		if (fileName == null)
+			return;
+
+		String format = Config.getString("Metrics.format", "json");
+		Lib.assertTrue(format.equals("json") || format.equals("prometheus"),
+				"unknown metrics format: " + format);
+		prometheus = format.equals("prometheus");
+
+		interval = Config.getInteger("Metrics.interval", 100000);
+		Lib.assertTrue(interval > 0);
+
+		out = (PrintWriter) privilege.doPrivileged(new PrivilegedOpen(
+				new File(fileName)));
+
+		totalTicks = gauge("machine_ticks", "simulated ticks since boot");
+		kernelTicks = gauge("machine_kernel_ticks",
+				"ticks spent in the kernel");
+		userTicks = gauge("machine_user_ticks", "ticks spent in user mode");
+		pageFaults = gauge("machine_page_faults", "page faults");
+		tlbMisses = gauge("machine_tlb_misses", "TLB misses");
+
+		snapshotInterrupt = new Runnable() {
+			public void run() {
+				snapshotInterrupt();
+			}
+		};
+		scheduleSnapshot();
+	}
+
+	/**
+	 * Register a counter, a value that only goes up.
+	 *
+	 * @param name the name of the counter, in lower case with underscores.
+	 * @param help what the counter counts.
+	 * @return the counter.
+	 */
+	public Counter counter(String name, String help) {
+		Metric metric = metrics.get(name);
+		if (metric == null)
+			return (Counter) register(new Counter(name, help));
+
+		Lib.assertTrue(metric instanceof Counter, name + " is not a counter");
+		return (Counter) metric;
+	}
+
+	/**
+	 * Register a gauge, a value that goes up and down.
+	 *
+	 * @param name the name of the gauge, in lower case with underscores.
+	 * @param help what the gauge measures.
+	 * @return the gauge.
+	 */
+	public Gauge gauge(String name, String help) {
+		Metric metric = metrics.get(name);
+		if (metric == null)
+			return (Gauge) register(new Gauge(name, help));
+
+		Lib.assertTrue(metric instanceof Gauge, name + " is not a gauge");
+		return (Gauge) metric;
+	}
+
+	/**
+	 * Register a histogram, a distribution of values such as latencies in
+	 * ticks.
+	 *
+	 * @param name the name of the histogram, in lower case with underscores.
+	 * @param help what the histogram measures.
+	 * @return the histogram.
+	 */
+	public Histogram histogram(String name, String help) {
+		Metric metric = metrics.get(name);
+		if (metric == null)
+			return (Histogram) register(new Histogram(name, help));
+
+		Lib.assertTrue(metric instanceof Histogram, name
+				+ " is not a histogram");
+		return (Histogram) metric;
+	}
+
+	private Metric register(Metric metric) {
+		Lib.assertTrue(metric.name.matches("[a-z_][a-z0-9_]*"),
+				"bad metric name: " + metric.name);
+
+		metrics.put(metric.name, metric);
+		return metric;
+	}
+
+	/**
+	 * Append a snapshot of every metric to the metrics file, if there is one.
+	 * Called when the machine halts.
+	 */
+	void snapshot() {
+		if (out == null)
+			return;
+
+		Stats stats = privilege.stats;
+		totalTicks.set(stats.totalTicks);
+		kernelTicks.set(stats.kernelTicks);
+		userTicks.set(stats.userTicks);
+		pageFaults.set(stats.numPageFaults);
+		tlbMisses.set(stats.numTLBMisses);
+
+		if (prometheus) {
+			out.println("# tick " + stats.totalTicks);
+			for (Metric metric : metrics.values())
+				metric.printPrometheus(out);
+		}
+		else {
+			StringBuffer line = new StringBuffer();
+			line.append("{\"tick\":").append(stats.totalTicks);
+			for (Metric metric : metrics.values()) {
+				line.append(",\"").append(metric.name).append("\":");
+				metric.appendJSON(line);
+			}
+			line.append('}');
+			out.println(line);
+		}
+
+		out.flush();
+	}
+
+	private void snapshotInterrupt() {
+		scheduleSnapshot();
+		snapshot();
+	}
+
+	private void scheduleSnapshot() {
+		privilege.interrupt.schedule(interval, "metrics", snapshotInterrupt);
+	}
+
+	/** A named metric. */
+	private static abstract class Metric {
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		abstract void appendJSON(StringBuffer line);
+
+		abstract void printPrometheus(PrintWriter out);
+
+		void printHeader(PrintWriter out, String type) {
+			out.println("# HELP " + name + " " + help);
+			out.println("# TYPE " + name + " " + type);
+		}
+
+		final String name;
+
+		final String help;
+	}
+
+	/**
+	 * A value that only goes up, such as the number of times something
+	 * happened.
+	 */
+	public static final class Counter extends Metric {
+		private Counter(String name, String help) {
+			super(name, help);
+		}
+
+		/**
+		 * Add one to this counter.
+		 */
+		public void increment() {
+			value++;
+		}
+
+		/**
+		 * Add to this counter.
+		 *
+		 * @param count the amount to add, which must not be negative.
+		 */
+		public void add(long count) {
+			value += count;
+		}
+
+		/**
+		 * Return the value of this counter.
+		 *
+		 * @return the value.
+		 */
+		public long get() {
+			return value;
+		}
+
+		void appendJSON(StringBuffer line) {
+			line.append(value);
+		}
+
+		void printPrometheus(PrintWriter out) {
+			printHeader(out, "counter");
+			out.println(name + " " + value);
+		}
+
+		private long value = 0;
+	}
+
+	/**
+	 * A value that goes up and down, such as the length of a queue.
+	 */
+	public static final class Gauge extends Metric {
+		private Gauge(String name, String help) {
+			super(name, help);
+		}
+
+		/**
+		 * Set the value of this gauge.
+		 *
+		 * @param value the new value.
+		 */
+		public void set(long value) {
+			this.value = value;
+		}
+
+		/**
+		 * Add to the value of this gauge.
+		 *
+		 * @param delta the amount to add, which may be negative.
+		 */
+		public void add(long delta) {
+			value += delta;
+		}
+
+		/**
+		 * Return the value of this gauge.
+		 *
+		 * @return the value.
+		 */
+		public long get() {
+			return value;
+		}
+
+		void appendJSON(StringBuffer line) {
+			line.append(value);
+		}
+
+		void printPrometheus(PrintWriter out) {
+			printHeader(out, "gauge");
+			out.println(name + " " + value);
+		}
+
+		private long value = 0;
+	}
+
+	/**
+	 * A distribution of non-negative values. As in an HDR histogram, values
+	 * are counted in buckets whose width grows with the value, each power of
+	 * two being split into <tt>2<sup>subBucketBits</sup></tt> buckets, so a
+	 * percentile is within 1/8 of the true value however large the values
+	 * get, in a fixed array.
+	 */
+	public static final class Histogram extends Metric {
+		private Histogram(String name, String help) {
+			super(name, help);
+		}
+
+		/**
+		 * Add a value to this histogram.
+		 *
+		 * @param value the value, which is counted as 0 if negative.
+		 */
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+
+			buckets[bucket(value)]++;
+			count++;
+			sum += value;
+			if (value < min)
+				min = value;
+			if (value > max)
+				max = value;
+		}
+
+		/**
+		 * Return the number of values recorded.
+		 *
+		 * @return the number of values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Return an upper bound on the given percentile of the values
+		 * recorded.
+		 *
+		 * @param percentile the percentile, from 0 to 100.
+		 * @return the largest value in the bucket holding the percentile, but
+		 * at most the largest value recorded, or 0 if nothing was recorded.
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(count * percentile / 100);
+			if (rank < 1)
+				rank = 1;
+
+			long seen = 0;
+			for (int i = 0; i < numBuckets; i++) {
+				seen += buckets[i];
+				if (seen >= rank)
+					return Math.min(highestValue(i), max);
+			}
+
+			return max;
+		}
+
+		private static int bucket(long value) {
+			if (value < subBuckets)
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - subBucketBits))
+					& (subBuckets - 1);
+			return (exponent - subBucketBits + 1) * subBuckets + sub;
+		}
+
+		private static long highestValue(int bucket) {
+			if (bucket < subBuckets)
+				return bucket;
+
+			int exponent = bucket / subBuckets + subBucketBits - 1;
+			long sub = bucket % subBuckets;
+			long lowest = (1L << exponent)
+					| (sub << (exponent - subBucketBits));
+			return lowest + (1L << (exponent - subBucketBits)) - 1;
+		}
+
+		void appendJSON(StringBuffer line) {
+			line.append("{\"count\":").append(count);
+			line.append(",\"sum\":").append(sum);
+			line.append(",\"min\":").append(count == 0 ? 0 : min);
+			line.append(",\"max\":").append(max);
+			for (int i = 0; i < quantiles.length; i++) {
+				line.append(",\"p").append(quantileNames[i]).append("\":");
+				line.append(getPercentile(quantiles[i]));
+			}
+			line.append('}');
+		}
+
+		void printPrometheus(PrintWriter out) {
+			printHeader(out, "summary");
+			for (int i = 0; i < quantiles.length; i++)
+				out.println(name + "{quantile=\"" + (quantiles[i] / 100)
+						+ "\"} " + getPercentile(quantiles[i]));
+			out.println(name + "_sum " + sum);
+			out.println(name + "_count " + count);
+		}
+
+		private long[] buckets = new long[numBuckets];
+
+		private long count = 0, sum = 0, min = Long.MAX_VALUE, max = 0;
+
+		private static final int subBucketBits = 3,
+				subBuckets = 1 << subBucketBits,
+				numBuckets = (64 - subBucketBits) * subBuckets;
+
+		private static final double[] quantiles = { 50, 90, 99 };
+
+		private static final String[] quantileNames = { "50", "90", "99" };
+	}
+
+	private static class PrivilegedOpen implements PrivilegedAction {
+		PrivilegedOpen(File file) {
+			this.file = file;
+		}
+
+		public Object run() {
+			try {
+				return new PrintWriter(new BufferedWriter(
+						new FileWriter(file)));
+			}
+			catch (IOException e) {
+				Lib.assertNotReached("can't open metrics file " + file + ": "
+						+ e);
+				return null;
+			}
+		}
+
+		private File file;
+	}
+
+	private Privilege privilege;
+
+	private LinkedHashMap<String, Metric> metrics =
+			new LinkedHashMap<String, Metric>();
+
+	private PrintWriter out = null;
+
+	private boolean prometheus;
+
+	private long interval;
+
+	private Runnable snapshotInterrupt;
+
+	private Gauge totalTicks, kernelTicks, userTicks, pageFaults, tlbMisses;
+}
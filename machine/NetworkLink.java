@@ -88,6 +88,30 @@ public class NetworkLink {
 
 		socket = null;
 
+		InputLog log = Machine.inputLog();
+		replaying = (log != null && log.replaying());
+
+		// a replayed link doesn't talk to the real network
+		if (replaying) {
+			linkAddress = (byte) log.replayLinkAddress();
+			System.out.print("(" + linkAddress + ")");
+
+			receiveInterrupt = new Runnable() {
+				public void run() {
+					receiveInterrupt();
+				}
+			};
+
+			sendInterrupt = new Runnable() {
+				public void run() {
+					sendInterrupt();
+				}
+			};
+
+			scheduleReceiveInterrupt();
+			return;
+		}
+
 		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
 			try {
 				socket = new DatagramSocket(portBase + linkAddress, localHost);
@@ -105,6 +129,9 @@ public class NetworkLink {
 
 		System.out.print("(" + linkAddress + ")");
 
+		if (log != null)
+			log.recordLinkAddress(linkAddress);
+
 		receiveInterrupt = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -168,6 +195,12 @@ public class NetworkLink {
 	private synchronized void receiveInterrupt() {
 		Lib.assertTrue(incomingPacket == null);
 
+		InputLog log = Machine.inputLog();
+		if (replaying)
+			incomingBytes = log.replayPacket();
+		else if (log != null && incomingBytes != null)
+			log.recordPacket(incomingBytes);
+
 		if (incomingBytes != null) {
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
 				try {
@@ -274,6 +307,11 @@ public class NetworkLink {
 		Packet p = outgoingPacket;
 		outgoingPacket = null;
 
+		if (replaying) {
+			privilege.stats.numPacketsSent++;
+			return;
+		}
+
 		try {
 			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
 					localHost, portBase + p.dstLink));
@@ -331,6 +369,9 @@ public class NetworkLink {
 
 	private byte linkAddress;
 
+	/** True if packets come from the input log instead of the network. */
+	private boolean replaying;
+
 	private double reliability;
 
 	private byte[] incomingBytes = null;
@@ -4,6 +4,19 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -43,18 +56,137 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		int memorySize = pageSize * numPhysPages;
+		if (Config.getBoolean("Processor.directMemory", false))
+			mainMemory = ByteBuffer.allocateDirect(memorySize);
+		else
+			mainMemory = ByteBuffer.wrap(new byte[memorySize]);
+		mainMemory.order(ByteOrder.LITTLE_ENDIAN);
+
+		decodeCache = new DecodedInstruction[memorySize / 4];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter")
+				|| engine.equals("threaded") || engine.equals("jit"),
+				"unknown Processor.engine: " + engine);
+
+		useBlocks = !engine.equals("interpreter");
+		if (useBlocks)
+			blockCache = new BasicBlock[memorySize / 4];
+
+		tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(numPhysPages);
+
+		// traces don't count the instructions they run
+		useTraces = engine.equals("jit") && profiler == null;
+		jitThreshold = Config.getInteger("Processor.jitThreshold", 1000);
+		Lib.assertTrue(jitThreshold > 0);
+
+		// intrinsics don't count the instructions they stand for either
+		if (Config.getBoolean("Processor.intrinsics", true) && profiler == null)
+			intrinsics = newIntrinsics();
+
+		pageVersion = new int[numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0,
+					"bad Processor.tlbSize or Processor.tlbAssociativity");
+
+			// an instruction and its operand can live in the same set
+			Lib.assertTrue(tlbAssociativity >= 2,
+					"Processor.tlbAssociativity must be at least 2");
+
+			int numSets = tlbSize / tlbAssociativity;
+			Lib.assertTrue((numSets & (numSets - 1)) == 0,
+					"the number of TLB sets must be a power of 2");
+			tlbSetMask = numSets - 1;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbLastUsed = new long[tlbSize];
 		}
 		else {
 			translations = null;
 		}
 	}
 
+	/**
+	 * Allocate a secondary CPU, sharing the memory of the boot CPU. A secondary
+	 * CPU has its own registers and its own host thread, and only runs user
+	 * code handed to it by <tt>dispatch()</tt>, in parallel with the kernel.
+	 * 
+	 * @param boot the boot CPU.
+	 * @param cpuNumber the number of this CPU.
+	 */
+	Processor(Processor boot, int cpuNumber) {
+		Lib.assertTrue(cpuNumber > 0);
+		Lib.assertTrue(!boot.usingTLB,
+				"secondary CPUs require page table translation");
+
+		this.privilege = boot.privilege;
+		this.cpuNumber = cpuNumber;
+
+		usingTLB = false;
+		numPhysPages = boot.numPhysPages;
+		mainMemory = boot.mainMemory;
+
+		decodeCache = new DecodedInstruction[boot.decodeCache.length];
+
+		useBlocks = boot.useBlocks;
+		if (useBlocks)
+			blockCache = new BasicBlock[boot.decodeCache.length];
+
+		// only the boot CPU prints what it runs
+		tracing = false;
+
+		if (boot.profiler != null)
+			profiler = new Profiler(boot.profiler);
+
+		useTraces = boot.useTraces;
+		jitThreshold = boot.jitThreshold;
+
+		if (boot.intrinsics != null)
+			intrinsics = newIntrinsics();
+
+		// other CPUs only write this CPU's code between dispatches, and
+		// dispatch() makes every block check its words again anyway
+		pageVersion = new int[numPhysPages];
+
+		quantum = Config.getInteger("Processor.quantum", 10000);
+		Lib.assertTrue(quantum > 0);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						runSecondary();
+					}
+				}, "cpu" + Processor.this.cpuNumber);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of this CPU. The boot CPU, which runs the kernel, is
+	 * CPU 0.
+	 * 
+	 * @return the number of this CPU.
+	 */
+	public int getCPUNumber() {
+		return cpuNumber;
+	}
+
 	/**
 	 * Set the exception handler, called whenever a user exception occurs.
 	 * 
@@ -89,7 +221,160 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
-		Instruction inst = new Instruction();
+		// the faster engines can't print each instruction as it executes
+		if (tracing)
+			runTracing();
+		else if (useBlocks)
+			runBlocks();
+		else
+			runInstructions();
+	}
+
+	/**
+	 * Start running the user thread whose registers and page table are loaded
+	 * in <i>context</i> on this secondary CPU, and return immediately. This
+	 * CPU runs up to <tt>Processor.quantum</tt> instructions on its own host
+	 * thread, and stops early on any exception. The kernel collects the stop
+	 * at a time that depends only on the simulation, not on the host, charges
+	 * the ticks for the instructions run, and calls <i>stopHandler</i> as an
+	 * interrupt. Call <tt>retire()</tt> to get the registers back.
+	 * 
+	 * @param context the processor holding the thread to run, normally the
+	 * boot CPU.
+	 * @param stopHandler the interrupt handler to call when this CPU stops.
+	 */
+	public void dispatch(Processor context, Runnable stopHandler) {
+		Lib.assertTrue(cpuNumber > 0 && context != this);
+		Lib.assertTrue(stopHandler != null);
+
+		synchronized (this) {
+			Lib.assertTrue(!dispatched);
+
+			System.arraycopy(context.registers, 0, registers, 0,
+					numUserRegisters);
+			translations = context.translations;
+			this.stopHandler = stopHandler;
+
+			// the kernel must know of the quantum before this CPU stops it
+			privilege.interrupt.startCPU("cpu" + cpuNumber, quantum);
+
+			dispatched = true;
+			notify();
+		}
+	}
+
+	/**
+	 * Copy the registers of the thread that last ran on this secondary CPU
+	 * back into <i>context</i>. Must not be called until the stop handler
+	 * passed to <tt>dispatch()</tt> has run.
+	 * 
+	 * @param context the processor to load the registers into.
+	 * @return <tt>true</tt> if this CPU stopped because of an exception, in
+	 * which case the cause register says which one, and the kernel should call
+	 * <tt>context.deliverException()</tt>.
+	 */
+	public boolean retire(Processor context) {
+		Lib.assertTrue(cpuNumber > 0 && context != this);
+
+		synchronized (this) {
+			Lib.assertTrue(!dispatched);
+
+			System.arraycopy(registers, 0, context.registers, 0,
+					numUserRegisters);
+			context.flushTranslations();
+
+			return stoppedOnException;
+		}
+	}
+
+	/**
+	 * Call the exception handler for the exception in the cause register, just
+	 * as if this processor had raised it. For kernels that run user code on
+	 * the secondary CPUs.
+	 */
+	public void deliverException() {
+		Lib.assertTrue(exceptionHandler != null);
+
+		// autograder might not want kernel to know about this exception
+		if (!Machine.autoGrader().exceptionHandler(privilege))
+			return;
+
+		exceptionHandler.run();
+	}
+
+	/**
+	 * The host thread of a secondary CPU. Runs a quantum of user code each
+	 * time a thread is dispatched to this CPU, and then posts an interrupt to
+	 * tell the kernel it stopped.
+	 */
+	private void runSecondary() {
+		Instruction inst = newInstruction();
+
+		try {
+			while (true) {
+				synchronized (this) {
+					while (!dispatched) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+						}
+					}
+				}
+
+				// the kernel may have loaded code or switched page tables
+				codeEpoch++;
+				flushTranslations();
+
+				int executed = 0;
+				boolean exception = false;
+
+				try {
+					while (executed < quantum) {
+						if (useBlocks) {
+							executed += runBlock(inst, quantum - executed);
+						}
+						else {
+							executed += inst.run(quantum - executed);
+						}
+					}
+				}
+				catch (MipsException e) {
+					if (useBlocks)
+						executed += blockExecuted;
+
+					e.latch();
+					executed++;
+					exception = true;
+				}
+
+				finishLoad();
+
+				Runnable handler;
+				synchronized (this) {
+					stoppedOnException = exception;
+					dispatched = false;
+					handler = stopHandler;
+				}
+
+				privilege.interrupt.stopCPU("cpu" + cpuNumber, executed,
+						handler);
+
+			}
+		}
+		catch (Throwable e) {
+			System.out.print("\n");
+			e.printStackTrace();
+			privilege.exit(1);
+		}
+	}
+
+	/**
+	 * Interpret instructions one at a time, printing each one as selected by
+	 * the debug flags, and tick after each one. Never returns.
+	 */
+	private void runTracing() {
+		Instruction inst = new TracingInstruction();
 
 		while (true) {
 			try {
@@ -103,6 +388,344 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Interpret instructions up to the next pending interrupt, and then charge
+	 * the ticks for all of them at once. Never returns.
+	 */
+	private void runInstructions() {
+		Instruction inst = newInstruction();
+
+		while (true) {
+			int budget = instructionBudget();
+			int executed = 0;
+
+			try {
+				while (executed < budget)
+					executed += inst.run(budget - executed);
+			}
+			catch (MipsException e) {
+				// charge for the instructions that completed before the fault
+				if (executed > 0)
+					privilege.interrupt.tick(false, executed);
+
+				e.handle();
+				executed = 1;
+			}
+
+			privilege.interrupt.tick(false, executed);
+		}
+	}
+
+	/**
+	 * Return a new interpreter, which counts what it runs if
+	 * <tt>Processor.profile</tt> is set.
+	 */
+	private Instruction newInstruction() {
+		if (profiler != null)
+			return new ProfilingInstruction();
+		else
+			return new Instruction();
+	}
+
+	/**
+	 * Return the number of user instructions that can run before the next
+	 * pending interrupt is due. Ticking once for that many instructions
+	 * delivers the interrupt after the same instruction as ticking after
+	 * each one, as long as nothing but user instructions runs in between.
+	 * 
+	 * @return the number of instructions, at least 1.
+	 */
+	private int instructionBudget() {
+		long until = privilege.interrupt.nextInterruptTime()
+				- privilege.stats.totalTicks;
+		if (until <= 0)
+			return 1;
+
+		long budget = (until - 1) / Stats.UserTick + 1;
+		return (int) Math.min(budget, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Execute instructions a basic block at a time, and charge the ticks for
+	 * each block at once. A block is never run past the next pending interrupt,
+	 * so interrupts are delivered after exactly the same instruction as with
+	 * the reference interpreter. Never returns.
+	 */
+	private void runBlocks() {
+		Instruction inst = newInstruction();
+
+		// the kernel may have loaded code since we last ran
+		codeEpoch++;
+
+		while (true) {
+			int budget = instructionBudget();
+			int executed;
+
+			try {
+				executed = runBlock(inst, budget);
+			}
+			catch (MipsException e) {
+				// charge for the instructions that completed before the fault
+				if (blockExecuted > 0)
+					privilege.interrupt.tick(false, blockExecuted);
+
+				e.handle();
+				executed = 1;
+			}
+
+			privilege.interrupt.tick(false, executed);
+		}
+	}
+
+	/**
+	 * Run the basic block starting at the current PC, building it first if
+	 * necessary.
+	 * 
+	 * @param inst used to interpret instructions that can't start a block.
+	 * @param budget the maximum number of instructions to execute.
+	 * @return the number of instructions executed.
+	 * @exception MipsException if an instruction caused an exception. In this
+	 * case, <tt>blockExecuted</tt> instructions completed before it.
+	 */
+	private int runBlock(Instruction inst, int budget) throws MipsException {
+		int pc = registers[regPC];
+
+		blockExecuted = 0;
+
+		// in a delay slot, let the interpreter handle the one instruction
+		if (registers[regNextPC] != pc + 4) {
+			inst.run();
+			return 1;
+		}
+
+		int paddr = translate(pc, 4, accessFetch);
+
+		BasicBlock block = blockCache[paddr >> 2];
+		if (block == null || block.vaddr != pc || !block.isValid()) {
+			block = new BasicBlock(pc, paddr);
+			blockCache[paddr >> 2] = block;
+		}
+
+		Intrinsic intrinsic = block.decoded[0].intrinsic;
+		if (intrinsic != null) {
+			int executed = runIntrinsic(intrinsic, paddr, budget);
+			if (executed > 0)
+				return executed;
+		}
+
+		if (useTraces) {
+			if (block.trace != null) {
+				if (block.trace.isValid()) {
+					int executed = block.trace.run(Math.min(budget,
+							maxTraceBudget));
+					if (executed > 0)
+						return executed;
+				}
+				else {
+					block.trace = null;
+					block.entries = 0;
+				}
+			}
+			else if (++block.entries == jitThreshold) {
+				block.trace = compileTrace(block);
+			}
+
+			int executed = block.run(budget);
+			block.successor = registers[regPC];
+			return executed;
+		}
+
+		if (profiler != null)
+			return profileBlock(block, budget);
+
+		return block.run(budget);
+	}
+
+	/**
+	 * Run a basic block and count the instructions that completed.
+	 */
+	private int profileBlock(BasicBlock block, int budget)
+			throws MipsException {
+		int executed;
+
+		try {
+			executed = block.run(budget);
+		}
+		catch (MipsException e) {
+			profiler.count(block, blockExecuted, blockTarget);
+			throw e;
+		}
+
+		profiler.count(block, executed, blockTarget);
+		return executed;
+	}
+
+	/**
+	 * Compile the hot region of code starting at the specified block into a
+	 * Java class. The region holds the blocks reachable from the first one
+	 * without leaving its page, that have already run and that contain only
+	 * instructions the trace compiler supports.
+	 * 
+	 * @param head the block at which the trace is entered.
+	 * @return the compiled trace, or <tt>null</tt> if it can't be compiled.
+	 */
+	private CompiledTrace compileTrace(BasicBlock head) {
+		if (!TraceCompiler.canCompile(head))
+			return null;
+
+		int vpn = pageFromAddress(head.vaddr);
+		int pageBase = head.ppn * pageSize;
+
+		ArrayList<BasicBlock> region = new ArrayList<BasicBlock>();
+		region.add(head);
+
+		for (int i = 0; i < region.size()
+				&& region.size() < TraceCompiler.maxBlocks; i++) {
+			BasicBlock block = region.get(i);
+			int end = block.vaddr + block.words.length * 4;
+
+			int[] successors;
+			if (block.branchIndex < 0) {
+				successors = new int[] { end };
+			}
+			else {
+				DecodedInstruction d = block.decoded[block.branchIndex];
+				int branchPC = end - 8;
+				if (d.operation != Mips.JUMP)
+					successors = new int[] { branchPC + 4 + d.branchOffset,
+							end };
+				else if (d.format == Mips.JFMT)
+					successors = new int[] { ((branchPC + 4) & 0xF0000000)
+							| (d.target << 2) };
+				else
+					successors = new int[] { block.successor };
+			}
+
+			for (int j = 0; j < successors.length
+					&& region.size() < TraceCompiler.maxBlocks; j++) {
+				int vaddr = successors[j];
+				if (pageFromAddress(vaddr) != vpn)
+					continue;
+
+				BasicBlock next =
+						blockCache[(pageBase + offsetFromAddress(vaddr)) >> 2];
+				if (next == null || next.vaddr != vaddr || region.contains(next)
+						|| !next.isValid() || !TraceCompiler.canCompile(next))
+					continue;
+
+				region.add(next);
+			}
+		}
+
+		BasicBlock[] blocks = region.toArray(new BasicBlock[region.size()]);
+
+		// the generated code only depends on the virtual addresses and the
+		// instructions, so every process running the same program shares it
+		StringBuffer key = new StringBuffer();
+		for (int i = 0; i < blocks.length; i++) {
+			key.append(' ').append(Integer.toHexString(blocks[i].vaddr));
+			for (int j = 0; j < blocks[i].words.length; j++)
+				key.append(',').append(Integer.toHexString(blocks[i].words[j]));
+		}
+
+		CompiledTrace template = traceClasses.get(key.toString());
+		if (template == null) {
+			final String name = "nachos/machine/Processor$Trace"
+					+ cpuNumber + "_" + traceClasses.size();
+			final TraceCompiler compiler = new TraceCompiler(blocks, name);
+			final byte[] bytes = compiler.compile();
+			if (bytes == null) {
+				Lib.debug(dbgTrace, "trace at 0x"
+						+ Lib.toHexString(head.vaddr) + " too large");
+				return null;
+			}
+
+			// secondary CPUs run on host threads that the security manager
+			// already trusts, and which must not take the kernel's privilege
+			if (cpuNumber == 0) {
+				template = (CompiledTrace) privilege
+						.doPrivileged(new PrivilegedAction() {
+							public Object run() {
+								return defineTrace(name, bytes);
+							}
+						});
+			}
+			else {
+				template = defineTrace(name, bytes);
+			}
+			if (template == null)
+				return null;
+
+			template.faultPC = compiler.faultPC;
+			template.faultOffset = compiler.faultOffset;
+			template.faultLoadTarget = compiler.faultLoadTarget;
+			template.faultInDelaySlot = compiler.faultInDelaySlot;
+			traceClasses.put(key.toString(), template);
+
+			Lib.debug(dbgTrace, "compiled trace at 0x"
+					+ Lib.toHexString(head.vaddr) + ", " + region.size()
+					+ " blocks, " + bytes.length + " bytes");
+		}
+
+		CompiledTrace trace = template.newTrace();
+		trace.processor = this;
+		trace.registers = registers;
+		trace.blocks = blocks;
+		trace.ppn = head.ppn;
+		trace.epoch = codeEpoch;
+		trace.version = pageVersion[head.ppn];
+		trace.faultPC = template.faultPC;
+		trace.faultOffset = template.faultOffset;
+		trace.faultLoadTarget = template.faultLoadTarget;
+		trace.faultInDelaySlot = template.faultInDelaySlot;
+
+		return trace;
+	}
+
+	/**
+	 * Load a class generated by the trace compiler and instantiate it. The
+	 * security manager forbids new class loaders, so the class is defined in
+	 * this package through a method handle lookup: as a hidden class where the
+	 * JVM supports them, so it can be unloaded once its trace is dropped, and
+	 * as an ordinary class otherwise.
+	 */
+	private static CompiledTrace defineTrace(String name, byte[] bytes) {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+		try {
+			Class<?> cls;
+
+			try {
+				Class<?> options = Array.newInstance(
+						Class.forName("java.lang.invoke."
+								+ "MethodHandles$Lookup$ClassOption"),
+						0).getClass();
+				MethodHandle define = lookup.findVirtual(
+						MethodHandles.Lookup.class, "defineHiddenClass",
+						MethodType.methodType(MethodHandles.Lookup.class,
+								byte[].class, boolean.class, options))
+						.asFixedArity();
+				MethodHandles.Lookup hidden = (MethodHandles.Lookup) define
+						.invokeWithArguments(lookup, bytes, Boolean.TRUE,
+								Array.newInstance(options.getComponentType(),
+										0));
+				cls = hidden.lookupClass();
+			}
+			catch (ClassNotFoundException e) {
+				MethodHandle define = lookup.findVirtual(
+						MethodHandles.Lookup.class, "defineClass",
+						MethodType.methodType(Class.class, byte[].class));
+				cls = (Class<?>) define.invokeWithArguments(lookup, bytes);
+			}
+
+			return (CompiledTrace) cls.newInstance();
+		}
+		catch (Throwable e) {
+			Lib.debug(dbgTrace, "could not load trace: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -173,6 +796,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslations();
 	}
 
 	/**
@@ -186,6 +810,68 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. The
+	 * set of a virtual page is its page number modulo the number of sets, and
+	 * set <i>s</i> is held by the <tt>getTLBAssociativity()</tt> entries
+	 * starting at index <i>s</i><tt> * getTLBAssociativity()</tt>. With the
+	 * default associativity, which is the TLB size, there is only one set.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Find the TLB entry that translates the specified virtual page, the way
+	 * the hardware does on every memory reference.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the valid entry for <i>vpn</i>, or -1 if there is
+	 * none.
+	 */
+	public int findTLBEntry(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		int base = (vpn & tlbSetMask) * tlbAssociativity;
+		for (int i = base; i < base + tlbAssociativity; i++) {
+			if (translations[i].valid && translations[i].vpn == vpn)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Suggest which TLB entry to fill with a translation for the specified
+	 * virtual page: an invalid entry in its set if there is one, and
+	 * otherwise the entry in its set that was used least recently.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the TLB entry to replace.
+	 */
+	public int getTLBVictim(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		// bring the use times up to date
+		flushTranslations();
+
+		int base = (vpn & tlbSetMask) * tlbAssociativity;
+		int victim = base;
+		for (int i = base; i < base + tlbAssociativity; i++) {
+			if (!translations[i].valid)
+				return i;
+
+			if (tlbLastUsed[i] < tlbLastUsed[victim])
+				victim = i;
+		}
+
+		return victim;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -203,8 +889,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written into the set of its virtual page (see
+	 * <tt>getTLBAssociativity()</tt>); where it goes within the set does not
+	 * affect anything. By default the TLB is fully associative, so any entry
+	 * will do.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -212,34 +900,224 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| (entry.vpn & tlbSetMask) == number / tlbAssociativity,
+				"TLB entry written outside the set of its page");
 
+		flushTranslations();
 		translations[number] = new TranslationEntry(entry);
+		tlbLastUsed[number] = ++tlbClock;
 	}
 
 	/**
-	 * Return the number of pages of physical memory attached to this simulated
-	 * processor.
-	 * 
-	 * @return the number of pages of physical memory.
+	 * Save the registers and the TLB to a checkpoint.
 	 */
-	public int getNumPhysPages() {
-		return numPhysPages;
+	void writeCheckpoint(DataOutput out) throws IOException {
+		Lib.assertTrue(cpuNumber == 0);
+
+		for (int i = 0; i < numUserRegisters; i++)
+			out.writeInt(registers[i]);
+
+		out.writeBoolean(usingTLB);
+		if (usingTLB) {
+			flushTranslations();
+
+			out.writeInt(tlbSize);
+			out.writeInt(tlbAssociativity);
+			out.writeLong(tlbClock);
+
+			for (int i = 0; i < tlbSize; i++) {
+				TranslationEntry entry = translations[i];
+				out.writeInt(entry.vpn);
+				out.writeInt(entry.ppn);
+				out.writeBoolean(entry.valid);
+				out.writeBoolean(entry.readOnly);
+				out.writeBoolean(entry.used);
+				out.writeBoolean(entry.dirty);
+				out.writeLong(tlbLastUsed[i]);
+			}
+		}
 	}
 
 	/**
-	 * Return a reference to the physical memory array. The size of this array
-	 * is <tt>pageSize * getNumPhysPages()</tt>.
-	 * 
-	 * @return the main memory array.
+	 * Load the registers and the TLB from a checkpoint.
 	 */
-	public byte[] getMemory() {
-		return mainMemory;
+	void readCheckpoint(DataInput in) throws IOException {
+		Lib.assertTrue(cpuNumber == 0);
+
+		for (int i = 0; i < numUserRegisters; i++)
+			registers[i] = in.readInt();
+
+		if (in.readBoolean() != usingTLB)
+			throw new IOException("checkpoint is for a different machine");
+
+		if (usingTLB) {
+			if (in.readInt() != tlbSize || in.readInt() != tlbAssociativity)
+				throw new IOException("checkpoint is for a different TLB");
+
+			flushTranslations();
+			tlbClock = in.readLong();
+
+			for (int i = 0; i < tlbSize; i++) {
+				translations[i] = new TranslationEntry(in.readInt(),
+						in.readInt(), in.readBoolean(), in.readBoolean(),
+						in.readBoolean(), in.readBoolean());
+				tlbLastUsed[i] = in.readLong();
+			}
+		}
 	}
 
 	/**
-	 * Concatenate a page number and an offset into an address.
-	 * 
-	 * @param page the page number. Must be between <tt>0</tt> and
+	 * Print the user instructions run since the machine started, if
+	 * <tt>Processor.profile</tt> is set: the mix of operations, the load,
+	 * store and branch totals, and the PCs that ran most often, by COFF file
+	 * and section.
+	 */
+	public void printProfile() {
+		Lib.assertTrue(cpuNumber == 0);
+
+		if (profiler != null)
+			profiler.print();
+	}
+
+	/**
+	 * Note that a page of a COFF section was just loaded into physical memory,
+	 * so the profile can map the PCs on that page back to the section.
+	 */
+	void loadedCoffPage(String fileName, CoffSection section, int spn,
+			int ppn) {
+
+		if (profiler != null)
+			profiler.load(fileName, section, spn, ppn);
+	}
+
+	/**
+	 * Return the number of pages of physical memory attached to this simulated
+	 * processor.
+	 * 
+	 * @return the number of pages of physical memory.
+	 */
+	public int getNumPhysPages() {
+		return numPhysPages;
+	}
+
+	/**
+	 * Return a reference to the physical memory array. The size of this array
+	 * is <tt>pageSize * getNumPhysPages()</tt>. Only available when main
+	 * memory lives on the Java heap (<tt>Processor.directMemory</tt> is not
+	 * set); kernels should prefer <tt>readPhysicalMemory()</tt> and
+	 * <tt>writePhysicalMemory()</tt>.
+	 * 
+	 * @return the main memory array.
+	 */
+	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory.hasArray(),
+				"main memory is not backed by an array");
+
+		return mainMemory.array();
+	}
+
+	/**
+	 * Return a little-endian view of physical memory. The view shares its
+	 * contents with main memory but has its own position and limit, so
+	 * callers may use the relative bulk operations freely.
+	 * 
+	 * @return a view of main memory.
+	 */
+	public ByteBuffer getMemoryBuffer() {
+		return mainMemory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Copy <i>length</i> bytes of physical memory starting at <i>paddr</i>
+	 * into <i>data</i>.
+	 * 
+	 * @param paddr the first physical address to read.
+	 * @param data the array in which to store the bytes.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readPhysicalMemory(int paddr, byte[] data, int offset,
+			int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= mainMemory.capacity());
+
+		if (mainMemory.hasArray()) {
+			System.arraycopy(mainMemory.array(), paddr, data, offset, length);
+		}
+		else {
+			ByteBuffer view = mainMemory.duplicate();
+			view.position(paddr);
+			view.get(data, offset, length);
+		}
+	}
+
+	/**
+	 * Copy <i>length</i> bytes from <i>data</i> into physical memory starting
+	 * at <i>paddr</i>.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param data the array containing the bytes.
+	 * @param offset the first byte to read from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writePhysicalMemory(int paddr, byte[] data, int offset,
+			int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= mainMemory.capacity());
+
+		if (mainMemory.hasArray()) {
+			System.arraycopy(data, offset, mainMemory.array(), paddr, length);
+		}
+		else {
+			ByteBuffer view = mainMemory.duplicate();
+			view.position(paddr);
+			view.put(data, offset, length);
+		}
+
+		invalidatePhysicalMemory(paddr, length);
+	}
+
+	/**
+	 * Fill <i>length</i> bytes of physical memory starting at <i>paddr</i>
+	 * with zeroes.
+	 * 
+	 * @param paddr the first physical address to clear.
+	 * @param length the number of bytes to clear.
+	 */
+	public void zeroPhysicalMemory(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= mainMemory.capacity());
+
+		if (mainMemory.hasArray()) {
+			java.util.Arrays.fill(mainMemory.array(), paddr, paddr + length,
+					(byte) 0);
+		}
+		else {
+			for (int i = 0; i < length; i++)
+				mainMemory.put(paddr + i, (byte) 0);
+		}
+
+		invalidatePhysicalMemory(paddr, length);
+	}
+
+	/**
+	 * Note that physical memory in the given range was changed behind the
+	 * processor's back, so that cached code on those pages is rechecked.
+	 */
+	private void invalidatePhysicalMemory(int paddr, int length) {
+		if (length == 0)
+			return;
+
+		for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1)
+				/ pageSize; ppn++)
+			pageVersion[ppn]++;
+	}
+
+	/**
+	 * Concatenate a page number and an offset into an address.
+	 * 
+	 * @param page the page number. Must be between <tt>0</tt> and
 	 * <tt>(2<sup>32</sup> / pageSize) - 1</tt>.
 	 * @param offset the offset within the page. Must be between <tt>0</tt> and
 	 * <tt>pageSize - 1</tt>.
@@ -272,6 +1150,60 @@ public final class Processor {
 		return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
 	}
 
+	/**
+	 * Return the decoded form of the instruction at the specified physical
+	 * address, reusing the cached one if the word hasn't changed.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word currently at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction predecode(int paddr, int value) {
+		DecodedInstruction decoded = decodeCache[paddr >> 2];
+
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value);
+			decodeCache[paddr >> 2] = decoded;
+
+			if (intrinsics != null) {
+				for (int i = 0; i < intrinsics.length; i++) {
+					if (intrinsics[i].matches(paddr))
+						decoded.intrinsic = intrinsics[i];
+				}
+			}
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Run as many whole iterations of a library loop as the budget allows,
+	 * starting at the current PC, which is its first instruction.
+	 * 
+	 * @param intrinsic the loop.
+	 * @param paddr the physical address of the current PC.
+	 * @param budget the maximum number of instructions to stand for.
+	 * @return the number of instructions the iterations stand for, or 0 if
+	 * none could be run.
+	 */
+	private int runIntrinsic(Intrinsic intrinsic, int paddr, int budget) {
+		int length = intrinsic.words.length;
+
+		if (budget < length || loadTarget != 0
+				|| registers[regNextPC] != registers[regPC] + 4
+				|| !intrinsic.matches(paddr))
+			return 0;
+
+		int iterations = intrinsic.run(budget / length, paddr / pageSize);
+
+		if (Lib.test(dbgIntrinsic))
+			System.out.println("intrinsic " + intrinsic.name + " at 0x"
+					+ Lib.toHexString(registers[regPC]) + ": " + iterations
+					+ " iterations");
+
+		return iterations * length;
+	}
+
 	private void finishLoad() {
 		delayedLoad(0, 0, 0);
 	}
@@ -282,69 +1214,123 @@ public final class Processor {
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * The last successful translation for each kind of access is remembered
+	 * in a micro-TLB, so that straight-line code and array walks usually skip
+	 * the TLB search and the checks. These are flushed whenever the kernel
+	 * could have changed a translation.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
-	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param access the kind of memory reference (see the
+	 * <tt>access<i>*</i></tt> constants).
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
+	private int translate(int vaddr, int size, int access)
+			throws MipsException {
+		return translate(vaddr, size, access, false);
+	}
+
+	/**
+	 * Translate a virtual address, like
+	 * <tt>translate(vaddr, size, access)</tt>, but if <i>quiet</i> is set,
+	 * return -1 instead of causing an exception, without counting a page fault
+	 * or TLB miss.
+
+	 */
+	private int translate(int vaddr, int size, int access, boolean quiet)
 			throws MipsException {
+		// calculate virtual page number and offset from the virtual address
+		int vpn = pageFromAddress(vaddr);
+		int offset = offsetFromAddress(vaddr);
+
+		if (vpn == microVPN[access] && (vaddr & (size - 1)) == 0) {
+			TranslationEntry entry = microEntry[access];
+			entry.used = true;
+			if (access == accessWrite)
+				entry.dirty = true;
+
+			return microBase[access] + offset;
+		}
+
+		boolean writing = (access == accessWrite);
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
+			if (quiet)
+				return -1;
+
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw exception(exceptionAddressError, vaddr);
 		}
 
-		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
-		int offset = offsetFromAddress(vaddr);
-
 		TranslationEntry entry = null;
+		int way = -1;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
+				if (quiet)
+					return -1;
+
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw exception(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB set of the vpn for a matching entry
 		else {
-			for (int i = 0; i < tlbSize; i++) {
+			int base = (vpn & tlbSetMask) * tlbAssociativity;
+			for (int i = base; i < base + tlbAssociativity; i++) {
 				if (translations[i].valid && translations[i].vpn == vpn) {
 					entry = translations[i];
+					way = i;
+					if (!quiet)
+						tlbLastUsed[i] = ++tlbClock;
 					break;
 				}
 			}
 			if (entry == null) {
+				if (quiet)
+					return -1;
+
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw exception(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
+			if (quiet)
+				return -1;
+
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw exception(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
+			if (quiet)
+				return -1;
+
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw exception(exceptionBusError, vaddr);
 		}
 
+		// a quiet translation only uses the entry once it knows it succeeds
+		if (quiet && way >= 0)
+			tlbLastUsed[way] = ++tlbClock;
+
 		// set used and dirty bits as appropriate
 		entry.used = true;
 		if (writing)
@@ -352,11 +1338,86 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (Lib.test(dbgProcessor)) {
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		}
+		else {
+			// the fast path prints nothing, so only use it when not tracing
+			microVPN[access] = vpn;
+			microEntry[access] = entry;
+			microBase[access] = ppn * pageSize;
+			microWay[access] = way;
+		}
+
 		return paddr;
 	}
 
+	/**
+	 * Forget the translations remembered by <tt>translate()</tt>.
+	 */
+	private void flushTranslations() {
+		for (int i = 0; i < numAccessTypes; i++) {
+			// hits in the micro-TLB are uses of the TLB entry too
+			if (microVPN[i] != -1 && microWay[i] >= 0)
+				tlbLastUsed[microWay[i]] = ++tlbClock;
+
+			microVPN[i] = -1;
+		}
+	}
+
+	/**
+	 * Translate the address of a byte access for an intrinsic, with exactly
+	 * the side effects <tt>translate()</tt> would have.
+	 * 
+	 * @param vaddr the virtual address.
+	 * @param access the kind of access.
+	 * @return the physical address, or -1 if the access would fault.
+	 */
+	private int probe(int vaddr, int access) {
+		try {
+			return translate(vaddr, 1, access, true);
+		}
+		catch (MipsException e) {
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Find the physical address a byte read from <i>vaddr</i> would go to,
+	 * without any side effects at all.
+	 * 
+	 * @param vaddr the virtual address.
+	 * @return the physical address, or -1 if the read would fault.
+	 */
+	private int peek(int vaddr) {
+		int vpn = pageFromAddress(vaddr);
+		int offset = offsetFromAddress(vaddr);
+
+		if (vpn == microVPN[accessRead])
+			return microBase[accessRead] + offset;
+
+		TranslationEntry entry = null;
+
+		if (!usingTLB) {
+			if (translations != null && vpn < translations.length
+					&& translations[vpn] != null && translations[vpn].valid)
+				entry = translations[vpn];
+		}
+		else {
+			int base = (vpn & tlbSetMask) * tlbAssociativity;
+			for (int i = base; i < base + tlbAssociativity; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn)
+					entry = translations[i];
+			}
+		}
+
+		if (entry == null || entry.ppn < 0 || entry.ppn >= numPhysPages)
+			return -1;
+
+		return entry.ppn * pageSize + offset;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -367,14 +1428,29 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		int paddr = translate(vaddr, size, accessRead);
+
+		switch (size) {
+		case 1:
+			return mainMemory.get(paddr);
+		case 2:
+			return mainMemory.getShort(paddr);
+		default:
+			return mainMemory.getInt(paddr);
+		}
+	}
+
+	/**
+	 * Like <tt>readMem()</tt>, but print the access if tracing the processor.
+	 */
+	private int traceReadMem(int vaddr, int size) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = readMem(vaddr, size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -393,14 +1469,37 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		int paddr = translate(vaddr, size, accessWrite);
+
+		switch (size) {
+		case 1:
+			mainMemory.put(paddr, (byte) value);
+			break;
+		case 2:
+			mainMemory.putShort(paddr, (short) value);
+			break;
+		default:
+			mainMemory.putInt(paddr, value);
+			break;
+		}
+
+		// any basic blocks on this page must be checked before they run again
+		pageVersion[paddr / pageSize]++;
+	}
+
+	/**
+	 * Like <tt>writeMem()</tt>, but print the access if tracing the processor.
+	 */
+	private void traceWriteMem(int vaddr, int size, int value)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
-
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		writeMem(vaddr, size, value);
 	}
 
 	/**
@@ -428,6 +1527,20 @@ public final class Processor {
 		loadMask = nextLoadMask;
 	}
 
+	/**
+	 * Complete the delayed load in progress, and then write the destination
+	 * register of an instruction that is not itself a load.
+	 * 
+	 * @param dstReg the destination register.
+	 * @param value the value to write.
+	 */
+	private void retire(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+	}
+
 	/**
 	 * Advance the PC to the next instruction.
 	 * 
@@ -502,6 +1615,9 @@ public final class Processor {
 	/** Index of argument register 3. */
 	public static final int regA3 = 7;
 
+	/** Index of temporary register 0, used by the library loops. */
+	private static final int regT0 = 8;
+
 	/** Index of the stack pointer register. */
 	public static final int regSP = 29;
 
@@ -532,6 +1648,21 @@ public final class Processor {
 	/** Provides privilege to this processor. */
 	private Privilege privilege;
 
+	/** The number of this CPU, 0 for the boot CPU. */
+	private int cpuNumber = 0;
+
+	/** Instructions a secondary CPU runs per dispatch. */
+	private int quantum;
+
+	/** Set while a secondary CPU has a thread to run. */
+	private boolean dispatched = false;
+
+	/** Called as an interrupt when a secondary CPU stops. */
+	private Runnable stopHandler;
+
+	/** Whether a secondary CPU last stopped because of an exception. */
+	private boolean stoppedOnException;
+
 	/** MIPS registers accessible to the kernel. */
 	private int registers[] = new int[numUserRegisters];
 
@@ -550,12 +1681,45 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity = 4;
+
+	/** Selects the TLB set from a virtual page number. */
+	private int tlbSetMask = 0;
+
+	/** When each TLB entry was last used, as a value of tlbClock. */
+	private long[] tlbLastUsed;
+
+	/** Counts TLB entry uses, to order them for replacement. */
+	private long tlbClock = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** The kinds of memory reference, each with its own micro-TLB entry. */
+	private static final int accessFetch = 0, accessRead = 1,
+			accessWrite = 2, numAccessTypes = 3;
+
+	/**
+	 * The virtual page of the last translation of each kind, or -1 if there
+	 * is none.
+	 */
+	private int[] microVPN = { -1, -1, -1 };
+
+	/** The entries the last translations of each kind were made with. */
+	private TranslationEntry[] microEntry =
+			new TranslationEntry[numAccessTypes];
+
+
+	/** The physical address of the page of the last translations. */
+	private int[] microBase = new int[numAccessTypes];
+
+	/** The TLB index of the last translations, or -1 without a TLB. */
+	private int[] microWay = { -1, -1, -1 };
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -566,7 +1730,62 @@ public final class Processor {
 	private int numPhysPages;
 
 	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	private ByteBuffer mainMemory;
+
+	/** Predecoded instructions, indexed by physical word address. */
+	private DecodedInstruction[] decodeCache;
+
+	/**
+	 * <tt>true</tt> if any of the processor debug flags were given, so every
+	 * instruction must be interpreted and printed.
+	 */
+	private boolean tracing;
+
+	/** <tt>true</tt> if using the basic-block execution engine. */
+	private boolean useBlocks;
+
+	/** <tt>true</tt> if hot regions of basic blocks are compiled to Java. */
+	private boolean useTraces;
+
+	/** The number of times a block must run before it gets compiled. */
+	private int jitThreshold;
+
+	/** An instance of each trace class, indexed by the code it runs. */
+	private HashMap<String, CompiledTrace> traceClasses =
+			new HashMap<String, CompiledTrace>();
+
+	/** Keeps the instruction count of a trace from overflowing. */
+	private static final int maxTraceBudget = 0x3FFFFFFF;
+
+	/** Basic blocks, indexed by the physical word address of their start. */
+	private BasicBlock[] blockCache;
+
+	/** Incremented by every store to the corresponding physical page. */
+	private int[] pageVersion;
+
+	/**
+	 * Incremented every time the kernel gets control, since the kernel can
+	 * write to main memory directly.
+	 */
+	private int codeEpoch = 0;
+
+	/**
+	 * The library loops run on the host, or <tt>null</tt> if
+	 * <tt>Processor.intrinsics</tt> is off.
+	 */
+	private Intrinsic[] intrinsics = null;
+
+	/** Counts the instructions run, if <tt>Processor.profile</tt> is set. */
+	private Profiler profiler = null;
+
+	/** The number of instructions completed by a block before a fault. */
+	private int blockExecuted;
+
+	/** Where control goes after the delay slot of the block's branch. */
+	private int blockTarget;
+
+	/** Thrown for every CPU exception, see <tt>exception()</tt>. */
+	private final MipsException mipsException = new MipsException();
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -577,27 +1796,75 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgTrace = 'j';
+
+	private static final char dbgIntrinsic = 'l';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			codeEpoch++;
+			flushTranslations();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Return the exception to throw for a CPU exception with the specified
+	 * cause. The same exception object is used every time.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException exception(int cause) {
+		return mipsException.set(cause, false, 0);
+	}
 
-			this.cause = cause;
+	/**
+	 * Return the exception to throw for a CPU exception caused by a bad
+	 * virtual address.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused it.
+	 * @return the exception to throw.
+	 */
+	private MipsException exception(int cause, int badVAddr) {
+		return mipsException.set(cause, true, badVAddr);
+	}
+
+	/**
+	 * A CPU exception on its way from the instruction that caused it to
+	 * <tt>handle()</tt>. Page faults and TLB misses are frequent, so rather
+	 * than allocating a new exception and filling in its stack trace every
+	 * time, the processor keeps a single one with no stack trace. This is
+	 * safe because <tt>handle()</tt> reads the cause before the kernel can
+	 * run again.
+	 */
+	private class MipsException extends Exception {
+		public MipsException() {
+			super(null, null, false, false);
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		private MipsException set(int cause, boolean hasBadVAddr,
+				int badVAddr) {
+
+			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			hasBadVAddr = true;
+			this.cause = cause;
+			this.hasBadVAddr = hasBadVAddr;
 			this.badVAddr = badVAddr;
+			return this;
 		}
 
 		public void handle() {
+			latch();
+			deliverException();
+		}
+
+		/**
+		 * Load the cause registers and drain the pipeline, but don't call the
+		 * kernel yet.
+		 */
+		private void latch() {
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -607,14 +1874,8 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
-
-			Lib.assertTrue(exceptionHandler != null);
-
-			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
-				return;
-
-			exceptionHandler.run();
+			codeEpoch++;
+			flushTranslations();
 		}
 
 		private boolean hasBadVAddr = false;
@@ -622,6 +1883,11 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * Executes one instruction at a time. This class never looks at the debug
+	 * flags; <tt>TracingInstruction</tt> adds the disassembly and the memory
+	 * trace on top of it.
+	 */
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
@@ -631,88 +1897,82 @@ public final class Processor {
 			writeBack();
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
-		}
+		/**
+		 * Execute the instruction at the PC, or if it starts a library loop,
+		 * as many iterations of it as fit in the budget.
+		 * 
+		 * @param budget the maximum number of instructions to execute.
+		 * @return the number of instructions executed.
+		 */
+		int run(int budget) throws MipsException {
+			fetch();
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+			if (decoded.intrinsic != null) {
+				int executed = runIntrinsic(decoded.intrinsic, paddr, budget);
+				if (executed > 0)
+					return executed;
+			}
 
-			value = readMem(registers[regPC], 4);
+			decode();
+			execute();
+			writeBack();
+			return 1;
 		}
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+		boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+		int readMem(int vaddr, int size) throws MipsException {
+			return Processor.this.readMem(vaddr, size);
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			Processor.this.writeMem(vaddr, size, value);
+		}
+
+		void fetch() throws MipsException {
+			paddr = translate(registers[regPC], 4, accessFetch);
+
+			value = mainMemory.getInt(paddr);
+
+			decoded = predecode(paddr, value);
+		}
+
+		void decode() {
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -732,12 +1992,9 @@ public final class Processor {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
-		private void print() {
+		void print() {
 			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
 					&& !Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -860,7 +2117,7 @@ public final class Processor {
 				System.out.print("\n");
 		}
 
-		private void execute() throws MipsException {
+		void execute() throws MipsException {
 			int value;
 			int preserved;
 
@@ -884,7 +2141,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw exception(exceptionOverflow);
 				}
 				break;
 
@@ -954,7 +2211,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw exception(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1025,17 +2282,17 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw exception(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
 			}
 		}
 
-		private void writeBack() throws MipsException {
+		void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw exception(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1048,27 +2305,17 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
-					System.out.print("#0x" + Lib.toHexString((int) dst));
-					if (test(Mips.DELAYEDLOAD))
-						System.out.print(" (delayed load)");
-				}
-			}
-
 			if (test(Mips.BRANCH) && branch) {
 				nextPC = jtarget;
 			}
 
 			advancePC(nextPC);
-
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		DecodedInstruction decoded;
+
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1085,7 +2332,1174 @@ public final class Processor {
 		boolean branch;
 	}
 
-	private static class Mips {
+	/**
+	 * Executes one instruction at a time, and counts it in the profile.
+	 */
+	private class ProfilingInstruction extends Instruction {
+		public void run() throws MipsException {
+			super.run();
+
+			profiler.count(paddr, decoded, branch);
+		}
+
+		int run(int budget) throws MipsException {
+			run();
+			return 1;
+		}
+	}
+
+	/**
+	 * Executes one instruction at a time, printing what it does as selected
+	 * by the processor debug flags.
+	 */
+	private class TracingInstruction extends Instruction {
+		int readMem(int vaddr, int size) throws MipsException {
+			return traceReadMem(vaddr, size);
+		}
+
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			traceWriteMem(vaddr, size, value);
+		}
+
+		void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			int vaddr = registers[regPC];
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=4");
+
+			int paddr = translate(vaddr, 4, accessFetch);
+
+			value = mainMemory.getInt(paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+
+			decoded = predecode(paddr, value);
+		}
+
+		void decode() {
+			super.decode();
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
+		}
+
+		void writeBack() throws MipsException {
+			super.writeBack();
+
+			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+				if (Lib.test(dbgFullDisassemble)) {
+					System.out.print("#0x" + Lib.toHexString((int) dst));
+					if (test(Mips.DELAYEDLOAD))
+						System.out.print(" (delayed load)");
+				}
+			}
+
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("\n");
+		}
+	}
+
+	/**
+	 * A MIPS instruction translated into a Java object that performs exactly
+	 * that operation, so that a basic block can be run as a chain of these
+	 * without decoding anything.
+	 */
+	abstract class BlockOp {
+		/**
+		 * Execute this instruction.
+		 * 
+		 * @return <tt>false</tt> if the instruction wrote to the page holding
+		 * its own block, so the rest of the block may no longer be valid.
+		 * @exception MipsException if the instruction caused an exception.
+		 */
+		abstract boolean run() throws MipsException;
+	}
+
+	/**
+	 * A sequence of instructions on one physical page that always execute in
+	 * order: it ends after the delay slot of the first branch or jump, at the
+	 * first instruction that always traps, or at the end of the page.
+	 */
+	class BasicBlock {
+		BasicBlock(int vaddr, int paddr) {
+			this.vaddr = vaddr;
+			this.paddr = paddr;
+			ppn = paddr / pageSize;
+
+			int end = (ppn + 1) * pageSize;
+			int length = 0, branch = -1;
+
+			for (int addr = paddr; addr < end; addr += 4) {
+				DecodedInstruction decoded = predecode(addr,
+						mainMemory.getInt(addr));
+				boolean isBranch = Lib.test(Mips.BRANCH, decoded.flags);
+
+				// a branch in a delay slot is left to the interpreter
+				if (isBranch && branch >= 0)
+					break;
+
+				length++;
+
+				if (branch >= 0)
+					break;
+
+				if (isBranch)
+					branch = length - 1;
+				else if (decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.UNIMPL
+						|| decoded.operation == Mips.INVALID)
+					break;
+			}
+
+			branchIndex = branch;
+			words = new int[length];
+			decoded = new DecodedInstruction[length];
+			ops = new BlockOp[length];
+
+			for (int i = 0; i < length; i++) {
+				words[i] = mainMemory.getInt(paddr + i * 4);
+				decoded[i] = predecode(paddr + i * 4, words[i]);
+				ops[i] = compile(decoded[i], vaddr + i * 4);
+			}
+
+			epoch = codeEpoch;
+			version = pageVersion[ppn];
+		}
+
+		/**
+		 * Test whether the instructions this block was built from are still
+		 * in memory. Only needs to look at memory if the kernel has run or
+		 * the page has been stored to since the last check.
+		 * 
+		 * @return <tt>true</tt> if this block can still be run.
+		 */
+		boolean isValid() {
+			if (epoch == codeEpoch && version == pageVersion[ppn])
+				return true;
+
+			for (int i = 0; i < words.length; i++) {
+				if (mainMemory.getInt(paddr + i * 4) != words[i])
+					return false;
+			}
+
+			epoch = codeEpoch;
+			version = pageVersion[ppn];
+			return true;
+		}
+
+		/**
+		 * Run this block, starting at its first instruction.
+		 * 
+		 * @param budget the maximum number of instructions to execute.
+		 * @return the number of instructions executed.
+		 * @exception MipsException if an instruction caused an exception.
+		 */
+		int run(int budget) throws MipsException {
+			int count = Math.min(ops.length, budget);
+
+			int i = 0;
+
+			try {
+				while (i < count) {
+					if (!ops[i++].run())
+						break;
+				}
+			}
+			catch (MipsException e) {
+				// i was advanced past the faulting instruction
+				blockExecuted = --i;
+				setPC(i);
+				throw e;
+			}
+
+			setPC(i);
+			return i;
+		}
+
+		/**
+		 * Set the PC and nextPC registers to what the interpreter would have
+		 * left in them after executing the first <i>count</i> instructions.
+		 */
+		private void setPC(int count) {
+			if (branchIndex >= 0 && count == branchIndex + 2) {
+				registers[regPC] = blockTarget;
+				registers[regNextPC] = blockTarget + 4;
+			}
+			else {
+				registers[regPC] = vaddr + count * 4;
+
+				if (branchIndex >= 0 && count == branchIndex + 1)
+					registers[regNextPC] = blockTarget;
+				else
+					registers[regNextPC] = registers[regPC] + 4;
+			}
+		}
+
+		/**
+		 * Translate one instruction. The semantics must stay identical to
+		 * <tt>Instruction.execute()</tt> and <tt>Instruction.writeBack()</tt>.
+		 */
+		private BlockOp compile(final DecodedInstruction d, final int pc) {
+			final int rs = d.rs, rt = d.rt, sh = d.sh, imm = d.imm;
+			final int dstReg = d.dstReg, size = d.size;
+			final boolean imm2 = Lib.test(Mips.SRC2IMM, d.flags);
+			final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+			final boolean link = Lib.test(Mips.LINK, d.flags);
+
+			// the value of nextPC seen by this instruction
+			final int nextPC = pc + 8;
+
+			switch (d.operation) {
+			case Mips.ADD:
+				if (Lib.test(Mips.OVERFLOW, d.flags)) {
+					return new BlockOp() {
+						boolean run() throws MipsException {
+							long dst = (long) registers[rs]
+									+ (imm2 ? imm : registers[rt]);
+							if (Lib.test(dst, 31) != Lib.test(dst, 32))
+								throw exception(exceptionOverflow);
+							retire(dstReg, (int) dst);
+							return true;
+						}
+					};
+				}
+				else if (imm2) {
+					return new BlockOp() {
+						boolean run() {
+							retire(dstReg, registers[rs] + imm);
+							return true;
+						}
+					};
+				}
+				else {
+					return new BlockOp() {
+						boolean run() {
+							retire(dstReg, registers[rs] + registers[rt]);
+							return true;
+						}
+					};
+				}
+
+			case Mips.SUB:
+				if (Lib.test(Mips.OVERFLOW, d.flags)) {
+					return new BlockOp() {
+						boolean run() throws MipsException {
+							long dst = (long) registers[rs] - registers[rt];
+							if (Lib.test(dst, 31) != Lib.test(dst, 32))
+								throw exception(exceptionOverflow);
+							retire(dstReg, (int) dst);
+							return true;
+						}
+					};
+				}
+				else {
+					return new BlockOp() {
+						boolean run() {
+							retire(dstReg, registers[rs] - registers[rt]);
+							return true;
+						}
+					};
+				}
+
+			case Mips.SLT:
+				if (unsigned) {
+					return new BlockOp() {
+						boolean run() {
+							long src1 = registers[rs] & 0xFFFFFFFFL;
+							long src2 = (imm2 ? imm : registers[rt])
+									& 0xFFFFFFFFL;
+							retire(dstReg, (src1 < src2) ? 1 : 0);
+							return true;
+						}
+					};
+				}
+				else {
+					return new BlockOp() {
+						boolean run() {
+							int src2 = imm2 ? imm : registers[rt];
+							retire(dstReg, (registers[rs] < src2) ? 1 : 0);
+							return true;
+						}
+					};
+				}
+
+			case Mips.AND:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg,
+								registers[rs] & (imm2 ? imm : registers[rt]));
+						return true;
+					}
+				};
+			case Mips.OR:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg,
+								registers[rs] | (imm2 ? imm : registers[rt]));
+						return true;
+					}
+				};
+			case Mips.XOR:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg,
+								registers[rs] ^ (imm2 ? imm : registers[rt]));
+						return true;
+					}
+				};
+			case Mips.NOR:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg, ~(registers[rs] | registers[rt]));
+						return true;
+					}
+				};
+			case Mips.LUI:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg, imm << 16);
+						return true;
+					}
+				};
+
+			// shifts operate on the sign-extended 64-bit value of rt
+			case Mips.SLL:
+			case Mips.SRA:
+			case Mips.SRL:
+				final int operation = d.operation;
+				final boolean variable = !Lib.test(Mips.SRC1SH, d.flags);
+				return new BlockOp() {
+					boolean run() {
+						long src2 = registers[rt];
+						int shift = (variable ? registers[rs] : sh) & 0x1F;
+						long dst;
+						if (operation == Mips.SLL)
+							dst = src2 << shift;
+						else if (operation == Mips.SRA)
+							dst = src2 >> shift;
+						else
+							dst = src2 >>> shift;
+						retire(dstReg, (int) dst);
+						return true;
+					}
+				};
+
+			case Mips.MULT:
+				return new BlockOp() {
+					boolean run() {
+						long src1 = registers[rs], src2 = registers[rt];
+						if (unsigned) {
+							src1 &= 0xFFFFFFFFL;
+							src2 &= 0xFFFFFFFFL;
+						}
+						long dst = src1 * src2;
+						registers[regLo] = (int) Lib.extract(dst, 0, 32);
+						registers[regHi] = (int) Lib.extract(dst, 32, 32);
+						finishLoad();
+						return true;
+					}
+				};
+			case Mips.DIV:
+				return new BlockOp() {
+					boolean run() throws MipsException {
+						long src1 = registers[rs], src2 = registers[rt];
+						if (unsigned) {
+							src1 &= 0xFFFFFFFFL;
+							src2 &= 0xFFFFFFFFL;
+						}
+						try {
+							registers[regLo] = (int) (src1 / src2);
+							registers[regHi] = (int) (src1 % src2);
+							if (registers[regLo] * src2
+									+ registers[regHi] != src1)
+								throw new ArithmeticException();
+						}
+						catch (ArithmeticException e) {
+							throw exception(exceptionOverflow);
+						}
+						finishLoad();
+						return true;
+					}
+				};
+
+			case Mips.MFLO:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg, registers[regLo]);
+						return true;
+					}
+				};
+			case Mips.MFHI:
+				return new BlockOp() {
+					boolean run() {
+						retire(dstReg, registers[regHi]);
+						return true;
+					}
+				};
+			case Mips.MTLO:
+				return new BlockOp() {
+					boolean run() {
+						registers[regLo] = registers[rs];
+						finishLoad();
+						return true;
+					}
+				};
+			case Mips.MTHI:
+				return new BlockOp() {
+					boolean run() {
+						registers[regHi] = registers[rs];
+						finishLoad();
+						return true;
+					}
+				};
+
+			case Mips.BEQ:
+			case Mips.BNE:
+			case Mips.BLEZ:
+			case Mips.BGTZ:
+			case Mips.BLTZ:
+			case Mips.BGEZ:
+				final int condition = d.operation;
+				final int target = pc + 4 + d.branchOffset;
+				return new BlockOp() {
+					boolean run() {
+						int src1 = registers[rs];
+						boolean branch;
+						switch (condition) {
+						case Mips.BEQ:
+							branch = (src1 == registers[rt]);
+							break;
+						case Mips.BNE:
+							branch = (src1 != registers[rt]);
+							break;
+						case Mips.BLEZ:
+							branch = (src1 <= 0);
+							break;
+						case Mips.BGTZ:
+							branch = (src1 > 0);
+							break;
+						case Mips.BLTZ:
+							branch = (src1 < 0);
+							break;
+						default:
+							branch = (src1 >= 0);
+							break;
+						}
+						if (link)
+							retire(dstReg, nextPC);
+						else
+							finishLoad();
+						blockTarget = branch ? target : nextPC;
+						return true;
+					}
+				};
+
+			case Mips.JUMP:
+				if (d.format == Mips.RFMT) {
+					return new BlockOp() {
+						boolean run() {
+							int target = registers[rs];
+							if (link)
+								retire(dstReg, nextPC);
+							else
+								finishLoad();
+							blockTarget = target;
+							return true;
+						}
+					};
+				}
+				else {
+					final int jtarget = ((pc + 4) & 0xF0000000)
+							| (d.target << 2);
+					return new BlockOp() {
+						boolean run() {
+							if (link)
+								retire(dstReg, nextPC);
+							else
+								finishLoad();
+							blockTarget = jtarget;
+							return true;
+						}
+					};
+				}
+
+			case Mips.LOAD:
+				return new BlockOp() {
+					boolean run() throws MipsException {
+						int value = readMem(registers[rs] + imm, size);
+						if (!unsigned)
+							value = Lib.extend(value, 0, size * 8);
+						delayedLoad(dstReg, value, 0xFFFFFFFF);
+						return true;
+					}
+				};
+
+			case Mips.STORE:
+				return new BlockOp() {
+					boolean run() throws MipsException {
+						writeMem(registers[rs] + imm, size, registers[rt]);
+						finishLoad();
+						return pageVersion[ppn] == version;
+					}
+				};
+
+			case Mips.SYSCALL:
+				return new BlockOp() {
+					boolean run() throws MipsException {
+						throw exception(exceptionSyscall);
+					}
+				};
+
+			default:
+				// rare instructions are left to the interpreter
+				return new BlockOp() {
+					boolean run() throws MipsException {
+						registers[regPC] = pc;
+						registers[regNextPC] = pc + 4;
+						interpreter.decoded = d;
+						interpreter.decode();
+						interpreter.execute();
+						interpreter.writeBack();
+						return pageVersion[ppn] == version;
+					}
+				};
+			}
+		}
+
+		/** The virtual and physical addresses of the first instruction. */
+		final int vaddr, paddr;
+
+		/** The physical page holding this block. */
+		final int ppn;
+
+		/** The instruction words this block was built from. */
+		final int[] words;
+
+		/** The decoded instructions. */
+		final DecodedInstruction[] decoded;
+
+		/** The translated instructions. */
+		final BlockOp[] ops;
+
+		/** The index of the branch or jump, or -1 if there is none. */
+		final int branchIndex;
+
+		/**
+		 * The values of <tt>codeEpoch</tt> and the page version when last
+		 * checked.
+		 */
+		int epoch, version;
+
+		/** The number of times this block has been entered. */
+		int entries = 0;
+
+		/**
+		 * The PC after the last run, used to guess where a jump register goes.
+		 */
+
+		int successor;
+
+		/** The compiled region starting at this block, if any. */
+		CompiledTrace trace = null;
+
+		/** Interprets the instructions with no translation of their own. */
+		private final Instruction interpreter = new Instruction();
+	}
+
+	/**
+	 * Allocate the intrinsics of this processor.
+	 */
+	private Intrinsic[] newIntrinsics() {
+		return new Intrinsic[] { new MemcpyLoop(), new MemsetLoop(),
+				new StrlenLoop(), new StrcpyLoop(), new StrcmpLoop() };
+	}
+
+	/**
+	 * The loop of one of the string and memory routines in
+	 * <tt>libnachos.a</tt>, run as a bulk operation on the host. User programs
+	 * are linked without symbols, so a loop is recognized by its instruction
+	 * words, wherever it was linked to.
+	 * 
+	 * <p>
+	 * Only iterations that go around the loop again are run here. Each one
+	 * leaves the registers, memory, TLB, and used and dirty bits exactly as
+	 * the interpreter would, and is charged as many instructions as the loop
+	 * has. The iteration that leaves the loop, and any iteration that would
+	 * fault or store to the loop's own page, are left to the interpreter.
+	 */
+	private abstract class Intrinsic {
+		Intrinsic(String name, int[] words) {
+			this.name = name;
+			this.words = words;
+		}
+
+		/**
+		 * Test whether this loop is in memory at the specified physical
+		 * address, all on one page.
+		 */
+		boolean matches(int paddr) {
+			if (offsetFromAddress(paddr) + words.length * 4 > pageSize)
+				return false;
+
+			for (int i = 0; i < words.length; i++) {
+				if (mainMemory.getInt(paddr + i * 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Run whole iterations of this loop, starting at its first
+		 * instruction, and leave the PC there.
+		 * 
+		 * @param maxIterations the most iterations to run.
+		 * @param codePPN the physical page holding the loop.
+		 * @return the number of iterations run.
+		 */
+		abstract int run(int maxIterations, int codePPN);
+
+		/** The name of the routine. */
+		final String name;
+
+		/** The instructions of one iteration, ending with the delay slot. */
+		final int[] words;
+	}
+
+	/** The byte copy loop of <tt>memcpy()</tt>. */
+	private class MemcpyLoop extends Intrinsic {
+		MemcpyLoop() {
+			super("memcpy", new int[] { 0x00a71021, // addu v0,a1,a3
+					0x90440000, // lbu a0,0(v0)
+					0x01071821, // addu v1,t0,a3
+					0x24e70001, // addiu a3,a3,1
+					0x00e6102b, // sltu v0,a3,a2
+					0x1440fffa, // bnez v0,loop
+					0xa0640000 }); // sb a0,0(v1)
+		}
+
+		int run(int maxIterations, int codePPN) {
+			int src = registers[regA1], dst = registers[regT0];
+			int n = registers[regA2], i = registers[regA3];
+
+			// iterations that leave i below n go around again
+			long left = (n & 0xFFFFFFFFL) - (i & 0xFFFFFFFFL) - 1;
+			int count = (int) Math.min(maxIterations, left);
+			int done = 0, last = 0;
+
+			while (done < count) {
+				int s = probe(src + i, accessRead);
+				if (s == -1)
+					break;
+
+				int d = probe(dst + i, accessWrite);
+				if (d == -1 || d / pageSize == codePPN)
+					break;
+
+				int chunk = Math.min(count - done, Math.min(pageSize
+						- offsetFromAddress(src + i), pageSize
+						- offsetFromAddress(dst + i)));
+
+				copyPhysicalMemory(s, d, chunk);
+				pageVersion[d / pageSize]++;
+
+				last = mainMemory.get(d + chunk - 1) & 0xFF;
+				i += chunk;
+				done += chunk;
+			}
+
+			if (done > 0) {
+				registers[regA3] = i;
+				registers[regA0] = last;
+				registers[regV1] = dst + i - 1;
+				registers[regV0] = 1;
+			}
+
+			return done;
+		}
+	}
+
+	/** The byte store loop of <tt>memset()</tt>. */
+	private class MemsetLoop extends Intrinsic {
+		MemsetLoop() {
+			super("memset", new int[] { 0x00871821, // addu v1,a0,a3
+					0x24e70001, // addiu a3,a3,1
+					0x00e6102b, // sltu v0,a3,a2
+					0x1440fffc, // bnez v0,loop
+					0xa0650000 }); // sb a1,0(v1)
+		}
+
+		int run(int maxIterations, int codePPN) {
+			int dst = registers[regA0];
+			byte c = (byte) registers[regA1];
+			int n = registers[regA2], i = registers[regA3];
+
+			long left = (n & 0xFFFFFFFFL) - (i & 0xFFFFFFFFL) - 1;
+			int count = (int) Math.min(maxIterations, left);
+			int done = 0;
+
+			while (done < count) {
+				int d = probe(dst + i, accessWrite);
+				if (d == -1 || d / pageSize == codePPN)
+					break;
+
+				int chunk = Math.min(count - done, pageSize
+						- offsetFromAddress(dst + i));
+
+				for (int j = 0; j < chunk; j++)
+					mainMemory.put(d + j, c);
+				pageVersion[d / pageSize]++;
+
+				i += chunk;
+				done += chunk;
+			}
+
+			if (done > 0) {
+				registers[regA3] = i;
+				registers[regV1] = dst + i - 1;
+				registers[regV0] = 1;
+			}
+
+			return done;
+		}
+	}
+
+	/** The scanning loop of <tt>strlen()</tt>. */
+	private class StrlenLoop extends Intrinsic {
+		StrlenLoop() {
+			super("strlen", new int[] { 0x90820000, // lbu v0,0(a0)
+					0x24630001, // addiu v1,v1,1
+					0x1440fffd, // bnez v0,loop
+					0x24840001 }); // addiu a0,a0,1
+		}
+
+		int run(int maxIterations, int codePPN) {
+			int str = registers[regA0];
+			int done = 0, last = 0;
+
+			while (done < maxIterations) {
+				int s = probe(str, accessRead);
+				if (s == -1)
+					break;
+
+				int chunk = Math.min(maxIterations - done, pageSize
+						- offsetFromAddress(str));
+
+				// the iteration that reads the null leaves the loop
+				int j = 0;
+				while (j < chunk && mainMemory.get(s + j) != 0)
+					j++;
+
+				if (j > 0)
+					last = mainMemory.get(s + j - 1) & 0xFF;
+				str += j;
+				done += j;
+
+				if (j < chunk)
+					break;
+			}
+
+			if (done > 0) {
+				registers[regA0] = str;
+				registers[regV1] += done;
+				registers[regV0] = last;
+			}
+
+			return done;
+		}
+	}
+
+	/** The copying loop of <tt>strcpy()</tt>. */
+	private class StrcpyLoop extends Intrinsic {
+		StrcpyLoop() {
+			super("strcpy", new int[] { 0x90a20000, // lbu v0,0(a1)
+					0x00000000, // nop
+					0xa0820000, // sb v0,0(a0)
+					0x90a30000, // lbu v1,0(a1)
+					0x24840001, // addiu a0,a0,1
+					0x1460fffa, // bnez v1,loop
+					0x24a50001 }); // addiu a1,a1,1
+		}
+
+		int run(int maxIterations, int codePPN) {
+			int dst = registers[regA0], src = registers[regA1];
+			int done = 0, last = 0;
+
+			while (done < maxIterations) {
+				int s = probe(src, accessRead);
+				if (s == -1)
+					break;
+
+				int d = probe(dst, accessWrite);
+				if (d == -1 || d / pageSize == codePPN)
+					break;
+
+				int chunk = Math.min(maxIterations - done, Math.min(pageSize
+						- offsetFromAddress(src), pageSize
+						- offsetFromAddress(dst)));
+
+				// one byte at a time, in case the strings overlap; the byte
+				// read again after the store is always the one stored
+				int j = 0;
+				while (j < chunk) {
+					byte b = mainMemory.get(s + j);
+					if (b == 0)
+						break;
+
+					mainMemory.put(d + j, b);
+					last = b & 0xFF;
+					j++;
+				}
+
+				if (j > 0)
+					pageVersion[d / pageSize]++;
+				src += j;
+				dst += j;
+				done += j;
+
+				if (j < chunk)
+					break;
+			}
+
+			if (done > 0) {
+				registers[regA0] = dst;
+				registers[regA1] = src;
+				registers[regV0] = last;
+				registers[regV1] = last;
+			}
+
+			return done;
+		}
+	}
+
+	/** The comparison loop of <tt>strcmp()</tt>, which is the whole routine. */
+	private class StrcmpLoop extends Intrinsic {
+		StrcmpLoop() {
+			super("strcmp", new int[] { 0x80830000, // lb v1,0(a0)
+					0x80a60000, // lb a2,0(a1)
+					0x00000000, // nop
+					0x0066102a, // slt v0,v1,a2
+					0x1440000a, // bnez v0,less
+					0x2407ffff, // li a3,-1
+					0x00c3102a, // slt v0,a2,v1
+					0x14400007, // bnez v0,greater
+					0x24070001, // li a3,1
+					0x24a50001, // addiu a1,a1,1
+					0x10600003, // beqz v1,equal
+					0x24840001, // addiu a0,a0,1
+					0x14c0fff3, // bnez a2,loop
+					0x00000000 }); // nop
+		}
+
+		int run(int maxIterations, int codePPN) {
+			int a = registers[regA0], b = registers[regA1];
+			int done = 0, last = 0;
+
+			while (done < maxIterations) {
+				// the two strings share the read micro-TLB entry, so look
+				// before translating, to translate only what the loop would
+				int pa = peek(a), pb = peek(b);
+				if (pa == -1 || pb == -1)
+					break;
+
+				byte ca = mainMemory.get(pa), cb = mainMemory.get(pb);
+				if (ca != cb || ca == 0)
+					break;
+
+				probe(a, accessRead);
+				probe(b, accessRead);
+
+				last = ca;
+				a++;
+				b++;
+				done++;
+			}
+
+			if (done > 0) {
+				registers[regA0] = a;
+				registers[regA1] = b;
+				registers[regV1] = last;
+				registers[regA2] = last;
+				registers[regV0] = 0;
+				registers[regA3] = 1;
+			}
+
+			return done;
+		}
+	}
+
+	/**
+	 * Copy bytes within main memory the way a loop of byte loads and stores
+	 * would, so that a destination just past the source repeats bytes.
+	 */
+	private void copyPhysicalMemory(int src, int dst, int length) {
+		if (dst > src && dst < src + length) {
+			for (int i = 0; i < length; i++)
+				mainMemory.put(dst + i, mainMemory.get(src + i));
+		}
+		else {
+			ByteBuffer from = mainMemory.duplicate();
+			from.limit(src + length);
+			from.position(src);
+
+			ByteBuffer to = mainMemory.duplicate();
+			to.position(dst);
+			to.put(from);
+		}
+	}
+
+	/**
+	 * A region of basic blocks compiled to a Java class by
+	 * <tt>TraceCompiler</tt>. The generated subclass implements
+	 * <tt>run()</tt> and calls back into the helpers below for anything
+	 * that touches memory or can cause an exception.
+	 */
+	public static abstract class CompiledTrace {
+		/**
+		 * Run the trace, starting at its first block.
+		 * 
+		 * @param budget the maximum number of instructions to execute.
+		 * @return the number of instructions executed, 0 if the first block
+		 * doesn't fit in the budget.
+		 * @exception MipsException if an instruction caused an exception. In
+		 * this case, <tt>blockExecuted</tt> instructions completed before it.
+		 */
+		public abstract int run(int budget) throws MipsException;
+
+		/**
+		 * Allocate another instance of the same class, so that the same code
+		 * can run from another physical page.
+		 */
+		public abstract CompiledTrace newTrace();
+
+		/**
+		 * Test whether the blocks this trace was compiled from are still in
+		 * memory.
+		 */
+		boolean isValid() {
+			if (epoch == processor.codeEpoch
+					&& version == processor.pageVersion[ppn])
+				return true;
+
+			for (int i = 0; i < blocks.length; i++) {
+				int[] words = blocks[i].words;
+				for (int j = 0; j < words.length; j++) {
+					if (processor.mainMemory.getInt(blocks[i].paddr
+							+ j * 4) != words[j])
+						return false;
+				}
+			}
+
+			epoch = processor.codeEpoch;
+			version = processor.pageVersion[ppn];
+			return true;
+		}
+
+		protected boolean hasPendingLoad() {
+			return processor.loadTarget != 0;
+		}
+
+		protected void finishLoad() {
+			processor.finishLoad();
+		}
+
+		protected int load(int vaddr, int size) throws MipsException {
+			return Lib.extend(processor.readMem(vaddr, size), 0, size * 8);
+		}
+
+		protected int loadUnsigned(int vaddr, int size) throws MipsException {
+			return processor.readMem(vaddr, size);
+		}
+
+		/**
+		 * Store to memory.
+		 * 
+		 * @return <tt>false</tt> if the store hit the page holding the trace.
+		 */
+		protected boolean store(int vaddr, int size, int value)
+				throws MipsException {
+			processor.writeMem(vaddr, size, value);
+			return processor.pageVersion[ppn] == version;
+		}
+
+		/**
+		 * Check the result of a signed add or subtract, like the interpreter.
+		 */
+		protected int checkOverflow(long dst) throws MipsException {
+			if (Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw processor.exception(exceptionOverflow);
+			return (int) dst;
+		}
+
+		protected void divide(int src1, int src2) throws MipsException {
+			divide((long) src1, (long) src2);
+		}
+
+		protected void divideUnsigned(int src1, int src2) throws MipsException {
+			divide(src1 & 0xFFFFFFFFL, src2 & 0xFFFFFFFFL);
+		}
+
+		private void divide(long src1, long src2) throws MipsException {
+			try {
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+				throw processor.exception(exceptionOverflow);
+			}
+		}
+
+		/**
+		 * Leave the trace, setting the state the interpreter would have left.
+		 * 
+		 * @return <i>count</i>.
+		 */
+		protected int exit(int pc, int nextPC, int loadTarget, int loadValue,
+				int count) {
+			registers[regPC] = pc;
+			registers[regNextPC] = nextPC;
+			processor.loadTarget = loadTarget;
+			processor.loadValue = loadValue;
+			processor.loadMask = 0xFFFFFFFF;
+			return count;
+		}
+
+		/**
+		 * Set the state the interpreter would have left before the
+		 * instruction recorded at <i>index</i> caused an exception.
+		 */
+		protected void fault(int index, int loadValue, int branchTarget,
+				int count) {
+			registers[regPC] = faultPC[index];
+			registers[regNextPC] = faultInDelaySlot[index] ? branchTarget
+					: faultPC[index] + 4;
+
+			if (faultLoadTarget[index] >= 0) {
+				processor.loadTarget = faultLoadTarget[index];
+				processor.loadValue = loadValue;
+				processor.loadMask = 0xFFFFFFFF;
+			}
+
+			processor.blockExecuted = count + faultOffset[index];
+		}
+
+		/** The MIPS registers, cached in locals while the trace runs. */
+		protected int[] registers;
+
+		Processor processor;
+
+		/** The blocks this trace was compiled from. */
+		BasicBlock[] blocks;
+
+		/** The physical page holding the trace. */
+		int ppn;
+
+		/**
+		 * The values of <tt>codeEpoch</tt> and the page version when last
+		 * checked.
+		 */
+
+		int epoch, version;
+
+		/** Where to resume after an exception, indexed by instruction. */
+		int[] faultPC, faultOffset, faultLoadTarget;
+
+		boolean[] faultInDelaySlot;
+	}
+
+	/**
+	 * The parts of an instruction that depend only on its encoding. These are
+	 * cached by physical word address in <tt>decodeCache</tt>; an entry is
+	 * tagged with the word it was decoded from, so it is decoded again as soon
+	 * as a store, <tt>CoffSection.loadPage()</tt>, or a swap-in overwrites it.
+	 */
+	static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			int imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offset uses the sign-extended immediate
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+
+			this.imm = imm;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg, branchOffset;
+
+		/** The library loop this instruction starts, if any. */
+		Intrinsic intrinsic = null;
+	}
+
+	static class Mips {
 		Mips() {
 		}
 
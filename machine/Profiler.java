@@ -0,0 +1,299 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Counts the user instructions a processor executes, for the report printed
+ * by <tt>Processor.printProfile()</tt>. Enabled by <tt>Processor.profile</tt>.
+ *
+ * <p>
+ * Execution counts and taken branch counts are kept in flat arrays indexed by
+ * physical word address, so that counting an instruction costs a couple of
+ * array increments. Each CPU has its own counters. The boot CPU's profiler
+ * also remembers which COFF section page each physical page was loaded from;
+ * when a page is loaded again, the counts of its previous contents are folded
+ * into a per-section profile keyed by virtual address, so a report covers
+ * every program run since the machine started.
+ */
+final class Profiler {
+	/**
+	 * Allocate the profiler of the boot CPU.
+	 *
+	 * @param numPhysPages the number of pages of physical memory.
+	 */
+	Profiler(int numPhysPages) {
+		this(numPhysPages, null);
+
+		frameSections = new SectionProfile[numPhysPages];
+		frameSPNs = new int[numPhysPages];
+		sections = new HashMap<String, SectionProfile>();
+		cpus = new ArrayList<Profiler>();
+		cpus.add(this);
+	}
+
+	/**
+	 * Allocate the profiler of a secondary CPU.
+	 *
+	 * @param boot the profiler of the boot CPU.
+	 */
+	Profiler(Profiler boot) {
+		this(boot.numPhysPages, boot);
+
+		boot.cpus.add(this);
+	}
+
+	private Profiler(int numPhysPages, Profiler boot) {
+		this.numPhysPages = numPhysPages;
+		this.boot = boot;
+
+		executions = new long[numPhysPages * wordsPerPage];
+		taken = new long[numPhysPages * wordsPerPage];
+	}
+
+	/**
+	 * Count one instruction run by the interpreter.
+	 *
+	 * @param paddr the physical address of the instruction.
+	 * @param decoded the instruction.
+	 * @param branch <tt>true</tt> if the instruction, when it is a branch,
+	 * went to its target.
+	 */
+	void count(int paddr, Processor.DecodedInstruction decoded,
+			boolean branch) {
+
+		int word = paddr >> 2;
+
+		executions[word]++;
+		operations[decoded.operation]++;
+
+		if (branch && Lib.test(Processor.Mips.BRANCH, decoded.flags))
+			taken[word]++;
+	}
+
+	/**
+	 * Count the instructions of a block that completed.
+	 *
+	 * @param block the block.
+	 * @param count the number of instructions that completed.
+	 * @param target where control goes after the delay slot of the block's
+	 * branch, if the branch completed.
+	 */
+	void count(Processor.BasicBlock block, int count, int target) {
+		int word = block.paddr >> 2;
+
+		for (int i = 0; i < count; i++) {
+			executions[word + i]++;
+			operations[block.decoded[i].operation]++;
+		}
+
+		int branch = block.branchIndex;
+		if (branch >= 0 && count > branch
+				&& target != block.vaddr + (branch + 2) * 4)
+			taken[word + branch]++;
+	}
+
+	/**
+	 * Note that a physical page was just loaded from a page of a COFF section.
+	 * Only called on the boot CPU's profiler.
+	 *
+	 * @param fileName the name of the COFF file.
+	 * @param section the section.
+	 * @param spn the page number within the section.
+	 * @param ppn the physical page.
+	 */
+	void load(String fileName, CoffSection section, int spn, int ppn) {
+		Lib.assertTrue(boot == null);
+
+		fold(ppn);
+
+		String key = fileName + " " + section.getName();
+		SectionProfile profile = sections.get(key);
+		if (profile == null) {
+			profile = new SectionProfile(key, section.getFirstVPN(),
+					section.getLength());
+			sections.put(key, profile);
+		}
+
+		frameSections[ppn] = profile;
+		frameSPNs[ppn] = spn;
+	}
+
+	/**
+	 * Move the counts of a physical page into the profile of the section page
+	 * it holds, and clear them.
+	 */
+	private void fold(int ppn) {
+		SectionProfile profile = frameSections[ppn];
+		if (profile == null)
+			return;
+
+		int first = ppn * wordsPerPage;
+		int offset = frameSPNs[ppn] * wordsPerPage;
+
+		for (Profiler cpu : cpus) {
+			for (int i = 0; i < wordsPerPage; i++) {
+				profile.executions[offset + i] += cpu.executions[first + i];
+				profile.taken[offset + i] += cpu.taken[first + i];
+				cpu.executions[first + i] = 0;
+				cpu.taken[first + i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Print the instruction mix, the branch and memory access totals, and the
+	 * hottest PCs of every CPU. Only called on the boot CPU's profiler.
+	 */
+	void print() {
+		Lib.assertTrue(boot == null);
+
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			fold(ppn);
+
+		long[] mix = new long[Processor.Mips.MAX + 1];
+		for (Profiler cpu : cpus) {
+			for (int i = 0; i < mix.length; i++)
+				mix[i] += cpu.operations[i];
+		}
+
+		long total = 0;
+		for (int i = 0; i < mix.length; i++)
+			total += mix[i];
+
+		System.out.println("Profile: " + total + " instructions on "
+				+ cpus.size() + " CPU(s)");
+		if (total == 0)
+			return;
+
+		System.out.println("Instruction mix:");
+		for (int i = 0; i < mix.length; i++) {
+			if (mix[i] > 0)
+				System.out.println("\t" + operationNames[i] + "\t" + mix[i]
+						+ "\t" + percent(mix[i], total));
+		}
+
+		long loads = mix[Processor.Mips.LOAD] + mix[Processor.Mips.LWL]
+				+ mix[Processor.Mips.LWR];
+		long stores = mix[Processor.Mips.STORE] + mix[Processor.Mips.SWL]
+				+ mix[Processor.Mips.SWR];
+		System.out.println("Loads: " + loads + ", stores: " + stores);
+
+		long branches = 0, branchesTaken = 0;
+		for (int i = Processor.Mips.JUMP; i <= Processor.Mips.BGEZ; i++)
+			branches += mix[i];
+
+		ArrayList<HotPC> pcs = new ArrayList<HotPC>();
+		for (SectionProfile profile : sections.values()) {
+			for (int i = 0; i < profile.executions.length; i++) {
+				branchesTaken += profile.taken[i];
+				if (profile.executions[i] > 0)
+					pcs.add(new HotPC(profile.name, profile.firstVPN
+							* Processor.pageSize + i * 4,
+							profile.executions[i], profile.taken[i]));
+			}
+		}
+
+		// code that ran from a page not loaded from a COFF file
+		for (Profiler cpu : cpus) {
+			for (int i = 0; i < cpu.executions.length; i++) {
+				branchesTaken += cpu.taken[i];
+				if (cpu.executions[i] > 0)
+					pcs.add(new HotPC("cpu" + cpus.indexOf(cpu) + " physical",
+							i * 4, cpu.executions[i], cpu.taken[i]));
+			}
+		}
+
+		System.out.println("Branches: " + branches + ", taken: "
+				+ branchesTaken + ", not taken: " + (branches - branchesTaken));
+
+		Collections.sort(pcs, new Comparator<HotPC>() {
+			public int compare(HotPC a, HotPC b) {
+				return a.executions > b.executions ? -1
+						: a.executions < b.executions ? 1 : 0;
+			}
+		});
+
+		System.out.println("Hottest PCs:");
+		for (int i = 0; i < pcs.size() && i < maxHotPCs; i++) {
+			HotPC pc = pcs.get(i);
+			System.out.println("\t" + pc.where + " 0x"
+					+ Lib.toHexString(pc.vaddr) + "\t" + pc.executions + "\t"
+					+ percent(pc.executions, total)
+					+ (pc.taken > 0 ? "\ttaken " + pc.taken : ""));
+		}
+	}
+
+	private static String percent(long count, long total) {
+		long tenths = (count * 1000 + total / 2) / total;
+		return (tenths / 10) + "." + (tenths % 10) + "%";
+	}
+
+	/** The counts of the pages of one COFF section, by virtual address. */
+	private static class SectionProfile {
+		SectionProfile(String name, int firstVPN, int numPages) {
+			this.name = name;
+			this.firstVPN = firstVPN;
+
+			executions = new long[numPages * wordsPerPage];
+			taken = new long[numPages * wordsPerPage];
+		}
+
+		final String name;
+
+		final int firstVPN;
+
+		final long[] executions, taken;
+	}
+
+	/** One line of the hottest PC list. */
+	private static class HotPC {
+		HotPC(String where, int vaddr, long executions, long taken) {
+			this.where = where;
+			this.vaddr = vaddr;
+			this.executions = executions;
+			this.taken = taken;
+		}
+
+		final String where;
+
+		final int vaddr;
+
+		final long executions, taken;
+	}
+
+	private final int numPhysPages;
+
+	/** The profiler of the boot CPU, or <tt>null</tt> if this is it. */
+	private final Profiler boot;
+
+	/** Per physical word: instructions completed, and branches taken. */
+	private final long[] executions, taken;
+
+	/** Instructions completed, by <tt>Mips.operation</tt>. */
+	private final long[] operations = new long[Processor.Mips.MAX + 1];
+
+	// only used on the boot CPU
+	private SectionProfile[] frameSections;
+
+	private int[] frameSPNs;
+
+	private HashMap<String, SectionProfile> sections;
+
+	private ArrayList<Profiler> cpus;
+
+	private static final int wordsPerPage = Processor.pageSize / 4;
+
+	private static final int maxHotPCs = 20;
+
+	private static final String[] operationNames = { "invalid", "unimpl",
+			"add", "sub", "mult", "div", "sll", "sra", "srl", "slt", "and",
+			"or", "nor", "xor", "lui", null, null, null, null, null, null,
+			"mflo", "mfhi", "mtlo", "mthi", "jump", "beq", "bne", "blez",
+			"bgtz", "bltz", "bgez", "syscall", "load", null, null, "lwl",
+			"lwr", "store", "swl", "swr" };
+}
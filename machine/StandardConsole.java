@@ -91,7 +91,19 @@ public class StandardConsole implements SerialConsole {
 	private void receiveInterrupt() {
 		Lib.assertTrue(incomingKey == -1);
 
-		incomingKey = translateCharacter(in());
+		InputLog log = Machine.inputLog();
+
+		int c;
+		if (log != null && log.replaying()) {
+			c = log.replayConsole();
+		}
+		else {
+			c = in();
+			if (log != null && c != -1)
+				log.recordConsole(c);
+		}
+
+		incomingKey = translateCharacter(c);
 		if (incomingKey == -1) {
 			scheduleReceiveInterrupt();
 		}
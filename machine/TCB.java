@@ -5,7 +5,11 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +18,18 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, the JVM threads are virtual threads,
+ * which need Java 21 or later, so many more TCBs can exist at once.
+ * 
+ * <p>
+ * A TCB hands the CPU to another by setting the other's <tt>running</tt> flag
+ * and unparking its JVM thread, which parks until the flag is set. Parking
+ * also lets a waiting virtual thread give up its carrier, which waiting in a
+ * monitor would not. If <tt>TCB.spin</tt> is set, a TCB polls the flag that
+ * many times before parking, which saves the wakeup when the JVM threads of
+ * two TCBs switching back and forth are on different host CPUs.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +55,60 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			virtualThreadFactory = newVirtualThreadFactory();
+			warmUpVirtualThreads();
+		}
+
+		spin = Config.getInteger("TCB.spin", 0);
+		Lib.assertTrue(spin >= 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual().factory()</tt>, which this code can't
+	 * name directly since it has to compile for older JVMs.
+	 */
+	private static ThreadFactory newVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("virtual threads need Java 21 or later: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Run one virtual thread that blocks once, and wait for it. A virtual
+	 * thread that blocks in the JVM, as a Nachos thread reading the console
+	 * does, makes the JVM start another carrier thread, and the first such
+	 * start initializes classes using permissions that a Nachos thread does
+	 * not have. This must be done before the security manager is installed.
+	 */
+	private static void warmUpVirtualThreads() {
+		final Object lock = new Object();
+
+		Thread thread = virtualThreadFactory.newThread(new Runnable() {
+			public void run() {
+				synchronized (lock) {
+					try {
+						lock.wait(1);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			}
+		});
+		thread.start();
+
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+		}
 	}
 
 	/**
@@ -68,7 +138,9 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		int limit = (virtualThreadFactory == null) ? maxThreads
+				: maxVirtualThreads;
+		Lib.assertTrue(runningThreads.size() < limit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +174,10 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					if (virtualThreadFactory == null)
+						javaThread = new Thread(tcbTarget);
+					else
+						javaThread = virtualThreadFactory.newThread(tcbTarget);
 				}
 			});
 
@@ -255,15 +330,24 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
+
+			/*
+			 * Virtual threads are daemon threads, so the JVM would exit as
+			 * soon as the main thread returned. Keep it until Nachos exits.
+			 */
+			if (isFirstTCB && virtualThreadFactory != null) {
+				while (true)
+					LockSupport.park();
+			}
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
+			runningThreads.remove(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(1);
 			else
@@ -291,32 +375,33 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Parks the JVM thread of this TCB until its <tt>running</tt> flag is set
+	 * to <tt>true</tt>, after polling the flag <tt>spin</tt> times.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
+	private void waitForInterrupt() {
+		for (int i = spin; i > 0; i--) {
+			if (running)
+				return;
 		}
+
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and unparking its JVM thread. Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +431,12 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence, when they run on virtual threads.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -362,18 +453,28 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+	 * A set containing all <i>running</i> TCB objects. It is initialized to an
+	 * empty set when the <tt>TCB</tt> class is loaded. TCB objects are
 	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt>, or
+	 * <tt>maxVirtualThreads</tt>, by <tt>start(Runnable)</tt>. If
+	 * <tt>threadroot()</tt> drops the number of TCB objects in
+	 * <tt>runningThreads</tt> to zero, Nachos exits, so once the first TCB is
+	 * created, this set is basically never empty.
+	 */
+	private static Set<TCB> runningThreads = Collections
+			.newSetFromMap(new ConcurrentHashMap<TCB, Boolean>());
+
+	/**
+	 * Makes virtual threads, or <tt>null</tt> to use platform threads.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static ThreadFactory virtualThreadFactory = null;
+
+	/** The number of times to poll <tt>running</tt> before parking. */
+	private static int spin = 0;
 
 	private static Privilege privilege;
 
@@ -402,8 +503,12 @@ public final class TCB {
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
+	 * 
+	 * <p>
+	 * Setting this flag is what hands the CPU over, so it is volatile: whatever
+	 * one TCB did before setting it is seen by the TCB that wakes up.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -60,6 +60,18 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Get the time spent running user programs. Since a user instruction
+	 * takes <tt>Stats.UserTick</tt> ticks, this also counts the user
+	 * instructions executed.
+	 * 
+	 * @return the number of clock ticks spent in user mode since Nachos
+	 * started.
+	 */
+	public long getUserTime() {
+		return privilege.stats.userTicks;
+	}
+
 	private void timerInterrupt() {
 		scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
@@ -0,0 +1,1059 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Translates a hot region of basic blocks into the bytecode of a subclass of
+ * <tt>Processor.CompiledTrace</tt>, so that HotSpot can compile the guest code
+ * like any other Java method.
+ *
+ * <p>
+ * All the blocks of a region lie on one physical page. Control stays inside
+ * the generated <tt>run()</tt> method as long as it moves from one block of
+ * the region to another and the instruction budget allows it; otherwise the
+ * method leaves the processor state exactly as the interpreter would have,
+ * and returns. MIPS registers are kept in JVM locals while the trace runs, and
+ * a delayed load is tracked statically, so that the instruction following a
+ * load still sees the old value of its target.
+ *
+ * <p>
+ * Every instruction that can cause an exception records its index in a local
+ * first. A catch-all handler writes the registers back and calls
+ * <tt>fault()</tt>, which uses that index to restore the PC, the delay slot
+ * and the delayed load before the exception is rethrown.
+ */
+final class TraceCompiler {
+	/**
+	 * Allocate a new trace compiler.
+	 *
+	 * @param region the blocks to translate. The first one is the entry point.
+	 * @param className the internal name of the class to generate.
+	 */
+	TraceCompiler(Processor.BasicBlock[] region, String className) {
+		this.region = region;
+		this.className = className;
+
+		variants = new Label[region.length][numRegs + 1];
+		rests = new Label[region.length];
+
+		for (int i = 0; i < region.length; i++) {
+			Processor.BasicBlock block = region[i];
+			for (int j = 0; j < block.decoded.length; j++) {
+				Processor.DecodedInstruction d = block.decoded[j];
+				used[d.rs] = used[d.rt] = true;
+				if (d.dstReg > 0)
+					used[d.dstReg] = written[d.dstReg] = true;
+			}
+		}
+		used[0] = written[0] = false;
+	}
+
+	/**
+	 * Test whether a block can be part of a compiled region.
+	 *
+	 * @param block the block to test.
+	 * @return <tt>true</tt> if every instruction in the block is supported
+	 * and the block ends on an instruction boundary.
+	 */
+	static boolean canCompile(Processor.BasicBlock block) {
+		int length = block.decoded.length;
+		if (block.branchIndex >= 0 && block.branchIndex != length - 2)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			switch (block.decoded[i].operation) {
+			case Processor.Mips.LWL:
+			case Processor.Mips.LWR:
+			case Processor.Mips.SWL:
+			case Processor.Mips.SWR:
+			case Processor.Mips.SYSCALL:
+			case Processor.Mips.UNIMPL:
+			case Processor.Mips.INVALID:
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Generate the class.
+	 *
+	 * @return the class file, or <tt>null</tt> if the region is too large to
+	 * fit in one method.
+	 */
+	byte[] compile() {
+		// load the registers used by the region into locals
+		aload(0);
+		getfield(traceClass, "registers", "[I");
+		astore(lRegs);
+		for (int local = lCount; local <= lTmp; local++) {
+			op(ICONST_0);
+			istore(local);
+		}
+		for (int r = 1; r < numRegs; r++) {
+			if (used[r]) {
+				aload(lRegs);
+				push(r);
+				op(IALOAD);
+				istore(slot(r));
+			}
+		}
+
+		int tryStart = code.size();
+
+		// a delayed load may be in progress when the trace is entered
+		Label dynamicEntry = new Label();
+		aload(0);
+		invoke(traceClass, "hasPendingLoad", "()Z");
+		branch(IFNE, dynamicEntry);
+		jump(variant(0, 0));
+
+		dynamicEntry.bind();
+		push(region[0].decoded.length);
+		iload(lBudget);
+		Label fits = new Label();
+		branch(IF_ICMPLE, fits);
+		op(ICONST_0);
+		op(IRETURN);
+		fits.bind();
+		int pending = emitInstruction(0, 0, -1);
+		jump(rest(0, pending));
+
+		// emit every variant that is branched to, until there are no more
+		while (!worklist.isEmpty()) {
+			int[] variant = worklist.remove(worklist.size() - 1);
+			emitVariant(variant[0], variant[1]);
+		}
+
+		for (int i = 0; i < exits.size(); i++)
+			emitExitStub(exits.get(i));
+
+		// the common exit: write back the registers and leave
+		commonExit.bind();
+		spill();
+		aload(0);
+		iload(lExitPC);
+		iload(lExitNextPC);
+		iload(lExitLoad);
+		iload(lLoadValue);
+		iload(lExitCount);
+		invoke(traceClass, "exit", "(IIIII)I");
+		op(IRETURN);
+
+		// the exception handler
+		int handler = code.size();
+		astore(lException);
+		spill();
+		aload(0);
+		iload(lIndex);
+		iload(lLoadValue);
+		iload(lTarget);
+		iload(lCount);
+		invoke(traceClass, "fault", "(IIII)V");
+		aload(lException);
+		op(ATHROW);
+
+		if (code.size() > maxCodeSize)
+			return null;
+
+		faultPC = toArray(faultPCs);
+		faultOffset = toArray(faultOffsets);
+		faultLoadTarget = toArray(faultLoadTargets);
+		faultInDelaySlot = new boolean[faultDelaySlots.size()];
+		for (int i = 0; i < faultInDelaySlot.length; i++)
+			faultInDelaySlot[i] = faultDelaySlots.get(i).booleanValue();
+
+		try {
+			return classFile(tryStart, handler);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Return the label of the code for a block entered with the specified
+	 * delayed load in progress, scheduling the code to be emitted if needed.
+	 */
+	private Label variant(int block, int pending) {
+		if (variants[block][pending] == null) {
+			variants[block][pending] = new Label();
+			worklist.add(new int[] { block, pending });
+		}
+
+		return variants[block][pending];
+	}
+
+	/**
+	 * Return the label of the code following the first instruction of a
+	 * block.
+	 */
+	private Label rest(int block, int pending) {
+		if (rests[block] == null) {
+			rests[block] = new Label();
+			restPending[block] = pending;
+			worklist.add(new int[] { block, -1 - pending });
+		}
+
+		Lib.assertTrue(restPending[block] == pending);
+		return rests[block];
+	}
+
+	private void emitVariant(int index, int pending) {
+		Processor.BasicBlock block = region[index];
+
+		// a rest of a block, whose first instruction was emitted elsewhere
+		if (pending < 0) {
+			if (!rests[index].isBound())
+				emitRest(index, -1 - pending);
+			return;
+		}
+
+		variants[index][pending].bind();
+
+		// leave if the whole block doesn't fit in the budget
+		iload(lCount);
+		push(block.decoded.length);
+		op(IADD);
+		iload(lBudget);
+		branch(IF_ICMPGT, exit(block.vaddr, false, pending, 0));
+
+		int next = emitInstruction(index, 0, pending);
+
+		if (rests[index] == null) {
+			rests[index] = new Label();
+			restPending[index] = next;
+			emitRest(index, next);
+		}
+		else {
+			jump(rest(index, next));
+		}
+	}
+
+	private void emitRest(int index, int pending) {
+		Processor.BasicBlock block = region[index];
+
+		rests[index].bind();
+
+		for (int i = 1; i < block.decoded.length; i++)
+			pending = emitInstruction(index, i, pending);
+
+		// n += length
+		iload(lCount);
+		push(block.decoded.length);
+		op(IADD);
+		istore(lCount);
+
+		if (block.branchIndex < 0) {
+			int next = block.vaddr + block.decoded.length * 4;
+			int target = find(next);
+			if (target >= 0)
+				jump(variant(target, pending));
+			else
+				jump(exit(next, false, pending, 0));
+			return;
+		}
+
+		Processor.DecodedInstruction d = block.decoded[block.branchIndex];
+		int branchPC = block.vaddr + block.branchIndex * 4;
+
+		int[] candidates;
+		if (d.operation != Processor.Mips.JUMP)
+			candidates = new int[] { branchPC + 4 + d.branchOffset,
+					branchPC + 8 };
+		else if (d.format == Processor.Mips.JFMT)
+			candidates = new int[] { jumpTarget(d, branchPC) };
+		else
+			candidates = new int[] { block.successor };
+
+		for (int i = 0; i < candidates.length; i++) {
+			int target = find(candidates[i]);
+			if (target >= 0) {
+				iload(lTarget);
+				push(candidates[i]);
+				branch(IF_ICMPEQ, variant(target, pending));
+			}
+		}
+
+		jump(exit(0, true, pending, 0));
+	}
+
+	/**
+	 * Emit one instruction.
+	 *
+	 * @param index the block containing the instruction.
+	 * @param i the index of the instruction within the block.
+	 * @param pending the target of the delayed load in progress, 0 if there
+	 * is none, or -1 if it is only known to the processor.
+	 * @return the target of the delayed load in progress afterwards.
+	 */
+	private int emitInstruction(int index, int i, int pending) {
+		Processor.BasicBlock block = region[index];
+		Processor.DecodedInstruction d = block.decoded[i];
+		int pc = block.vaddr + i * 4;
+		int nextPC = pc + 8;
+		boolean inDelaySlot = (block.branchIndex >= 0
+				&& i == block.branchIndex + 1);
+
+		boolean overflow = Lib.test(Processor.Mips.OVERFLOW, d.flags);
+		boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, d.flags);
+		boolean imm2 = Lib.test(Processor.Mips.SRC2IMM, d.flags);
+		boolean link = Lib.test(Processor.Mips.LINK, d.flags);
+
+		switch (d.operation) {
+		case Processor.Mips.ADD:
+		case Processor.Mips.SUB:
+			if (overflow) {
+				mayFault(pc, i, inDelaySlot, pending);
+				aload(0);
+				reg(d.rs);
+				op(I2L);
+				src2(d, imm2);
+				op(I2L);
+				op(d.operation == Processor.Mips.ADD ? LADD : LSUB);
+				invoke(traceClass, "checkOverflow", "(J)I");
+			}
+			else {
+				reg(d.rs);
+				src2(d, imm2);
+				op(d.operation == Processor.Mips.ADD ? IADD : ISUB);
+			}
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.SLT:
+			reg(d.rs);
+			if (unsigned) {
+				push(0x80000000);
+				op(IXOR);
+			}
+			src2(d, imm2);
+			if (unsigned) {
+				push(0x80000000);
+				op(IXOR);
+			}
+			condition(IF_ICMPLT);
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.AND:
+		case Processor.Mips.OR:
+		case Processor.Mips.XOR:
+		case Processor.Mips.NOR:
+			reg(d.rs);
+			src2(d, imm2);
+			switch (d.operation) {
+			case Processor.Mips.AND:
+				op(IAND);
+				break;
+			case Processor.Mips.OR:
+				op(IOR);
+				break;
+			case Processor.Mips.XOR:
+				op(IXOR);
+				break;
+			default:
+				op(IOR);
+				push(-1);
+				op(IXOR);
+				break;
+			}
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.LUI:
+			push(d.imm << 16);
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.SLL:
+		case Processor.Mips.SRA:
+		case Processor.Mips.SRL:
+			reg(d.rt);
+			if (Lib.test(Processor.Mips.SRC1SH, d.flags))
+				push(d.sh);
+			else
+				reg(d.rs);
+			// the interpreter shifts the sign-extended 64-bit value of rt, so
+			// its SRL is arithmetic too
+			op(d.operation == Processor.Mips.SLL ? ISHL : ISHR);
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.MULT:
+			aload(lRegs);
+			push(Processor.regLo);
+			reg(d.rs);
+			reg(d.rt);
+			op(IMUL);
+			op(IASTORE);
+			aload(lRegs);
+			push(Processor.regHi);
+			reg(d.rs);
+			op(I2L);
+			if (unsigned)
+				maskLong();
+			reg(d.rt);
+			op(I2L);
+			if (unsigned)
+				maskLong();
+			op(LMUL);
+			push(32);
+			op(LSHR);
+			op(L2I);
+			op(IASTORE);
+			return retire(-1, pending);
+
+		case Processor.Mips.DIV:
+			mayFault(pc, i, inDelaySlot, pending);
+			aload(0);
+			reg(d.rs);
+			reg(d.rt);
+			invoke(traceClass, unsigned ? "divideUnsigned" : "divide", "(II)V");
+			return retire(-1, pending);
+
+		case Processor.Mips.MFLO:
+		case Processor.Mips.MFHI:
+			aload(lRegs);
+			push(d.operation == Processor.Mips.MFLO ? Processor.regLo
+					: Processor.regHi);
+			op(IALOAD);
+			return retire(d.dstReg, pending);
+
+		case Processor.Mips.MTLO:
+		case Processor.Mips.MTHI:
+			aload(lRegs);
+			push(d.operation == Processor.Mips.MTLO ? Processor.regLo
+					: Processor.regHi);
+			reg(d.rs);
+			op(IASTORE);
+			return retire(-1, pending);
+
+		case Processor.Mips.BEQ:
+		case Processor.Mips.BNE:
+		case Processor.Mips.BLEZ:
+		case Processor.Mips.BGTZ:
+		case Processor.Mips.BLTZ:
+		case Processor.Mips.BGEZ:
+			reg(d.rs);
+			int test;
+			switch (d.operation) {
+			case Processor.Mips.BEQ:
+				reg(d.rt);
+				test = IF_ICMPEQ;
+				break;
+			case Processor.Mips.BNE:
+				reg(d.rt);
+				test = IF_ICMPNE;
+				break;
+			case Processor.Mips.BLEZ:
+				test = IFLE;
+				break;
+			case Processor.Mips.BGTZ:
+				test = IFGT;
+				break;
+			case Processor.Mips.BLTZ:
+				test = IFLT;
+				break;
+			default:
+				test = IFGE;
+				break;
+			}
+			Label taken = new Label(), done = new Label();
+			branch(test, taken);
+			push(nextPC);
+			jump(done);
+			taken.bind();
+			push(pc + 4 + d.branchOffset);
+			done.bind();
+			istore(lTarget);
+			if (link) {
+				push(nextPC);
+				return retire(d.dstReg, pending);
+			}
+			return retire(-1, pending);
+
+		case Processor.Mips.JUMP:
+			if (d.format == Processor.Mips.RFMT)
+				reg(d.rs);
+			else
+				push(jumpTarget(d, pc));
+			istore(lTarget);
+			if (link) {
+				push(nextPC);
+				return retire(d.dstReg, pending);
+			}
+			return retire(-1, pending);
+
+		case Processor.Mips.LOAD:
+			mayFault(pc, i, inDelaySlot, pending);
+			aload(0);
+			reg(d.rs);
+			push(d.imm);
+			op(IADD);
+			push(d.size);
+			invoke(traceClass, unsigned ? "loadUnsigned" : "load", "(II)I");
+			istore(lTmp);
+			commit(pending);
+			if (d.dstReg == 0)
+				return 0;
+			iload(lTmp);
+			istore(lLoadValue);
+			return d.dstReg;
+
+		case Processor.Mips.STORE:
+			mayFault(pc, i, inDelaySlot, pending);
+			aload(0);
+			reg(d.rs);
+			push(d.imm);
+			op(IADD);
+			push(d.size);
+			reg(d.rt);
+			invoke(traceClass, "store", "(III)Z");
+			commit(pending);
+			// stop right after a store to this page
+			if (inDelaySlot)
+				branch(IFEQ, exit(0, true, 0, i + 1));
+			else
+				branch(IFEQ, exit(pc + 4, false, 0, i + 1));
+			return 0;
+
+		default:
+			Lib.assertNotReached();
+			return 0;
+		}
+	}
+
+	/**
+	 * Finish an instruction whose result, if any, is on the stack: complete
+	 * the delayed load in progress, then write the destination register.
+	 */
+	private int retire(int dstReg, int pending) {
+		commit(pending);
+
+		if (dstReg > 0)
+			istore(slot(dstReg));
+		else if (dstReg == 0)
+			op(POP);
+
+		return 0;
+	}
+
+	/** Complete the delayed load in progress. */
+	private void commit(int pending) {
+		if (pending > 0) {
+			iload(lLoadValue);
+			istore(slot(pending));
+		}
+		else if (pending < 0) {
+			// the processor completes it, so reload every cached register
+			aload(0);
+			invoke(traceClass, "finishLoad", "()V");
+			for (int r = 1; r < numRegs; r++) {
+				if (used[r]) {
+					aload(lRegs);
+					push(r);
+					op(IALOAD);
+					istore(slot(r));
+				}
+			}
+		}
+	}
+
+	/** Record the state needed to recover from an exception here. */
+	private void mayFault(int pc, int offset, boolean inDelaySlot,
+			int pending) {
+		push(faultPCs.size());
+		istore(lIndex);
+
+		faultPCs.add(new Integer(pc));
+		faultOffsets.add(new Integer(offset));
+		faultLoadTargets.add(new Integer(pending));
+		faultDelaySlots.add(Boolean.valueOf(inDelaySlot));
+	}
+
+	/**
+	 * Return a label that leaves the trace.
+	 *
+	 * @param pc the new PC, if not <i>dynamic</i>.
+	 * @param dynamic <tt>true</tt> if the new PC is the branch target local.
+	 * @param pending the target of the delayed load in progress.
+	 * @param executed the number of instructions of the current block that
+	 * have completed.
+	 */
+	private Label exit(int pc, boolean dynamic, int pending, int executed) {
+		Exit exit = new Exit();
+		exit.pc = pc;
+		exit.dynamic = dynamic;
+		exit.pending = pending;
+		exit.executed = executed;
+		exits.add(exit);
+		return exit.label;
+	}
+
+	private void emitExitStub(Exit exit) {
+		exit.label.bind();
+
+		if (exit.dynamic) {
+			iload(lTarget);
+			istore(lExitPC);
+			iload(lTarget);
+			push(4);
+			op(IADD);
+			istore(lExitNextPC);
+		}
+		else {
+			push(exit.pc);
+			istore(lExitPC);
+			push(exit.pc + 4);
+			istore(lExitNextPC);
+		}
+
+		push(exit.pending);
+		istore(lExitLoad);
+		iload(lCount);
+		if (exit.executed != 0) {
+			push(exit.executed);
+			op(IADD);
+		}
+		istore(lExitCount);
+		jump(commonExit);
+	}
+
+	/** Write the registers modified by the region back to the processor. */
+	private void spill() {
+		for (int r = 1; r < numRegs; r++) {
+			if (written[r]) {
+				aload(lRegs);
+				push(r);
+				iload(slot(r));
+				op(IASTORE);
+			}
+		}
+	}
+
+	private int find(int vaddr) {
+		for (int i = 0; i < region.length; i++) {
+			if (region[i].vaddr == vaddr)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int jumpTarget(Processor.DecodedInstruction d, int pc) {
+		return ((pc + 4) & 0xF0000000) | (d.target << 2);
+	}
+
+	private static int[] toArray(ArrayList<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i).intValue();
+		return array;
+	}
+
+	private static int slot(int reg) {
+		return lRegBase + reg;
+	}
+
+	/** Push the value of a register. */
+	private void reg(int r) {
+		if (r == 0)
+			op(ICONST_0);
+		else
+			iload(slot(r));
+	}
+
+	private void src2(Processor.DecodedInstruction d, boolean imm2) {
+		if (imm2)
+			push(d.imm);
+		else
+			reg(d.rt);
+	}
+
+	private void maskLong() {
+		ldc2(0xFFFFFFFFL);
+		op(LAND);
+	}
+
+	/** Replace the two ints on the stack by 1 if the test holds, else 0. */
+	private void condition(int test) {
+		Label yes = new Label(), done = new Label();
+		branch(test, yes);
+		op(ICONST_0);
+		jump(done);
+		yes.bind();
+		op(ICONST_1);
+		done.bind();
+	}
+
+	/*
+	 * A minimal bytecode assembler.
+	 */
+
+	private class Label {
+		boolean isBound() {
+			return position >= 0;
+		}
+
+		void bind() {
+			Lib.assertTrue(position < 0);
+			position = code.size();
+
+			for (int i = 0; i < fixups.size(); i++) {
+				int at = fixups.get(i).intValue();
+				patch(at + 1, position - at);
+			}
+		}
+
+		void reference(int at) {
+			if (position >= 0)
+				patch(at + 1, position - at);
+			else
+				fixups.add(new Integer(at));
+		}
+
+		private int position = -1;
+
+		private ArrayList<Integer> fixups = new ArrayList<Integer>();
+	}
+
+	private class Exit {
+		Label label = new Label();
+
+		int pc, pending, executed;
+
+		boolean dynamic;
+	}
+
+	private void patch(int at, int offset) {
+		if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+			tooLarge = true;
+
+		code.patch(at, offset);
+	}
+
+	/** A code buffer whose branch offsets can be filled in later. */
+	private static class CodeBuffer extends ByteArrayOutputStream {
+		void patch(int at, int value) {
+			buf[at] = (byte) (value >> 8);
+			buf[at + 1] = (byte) value;
+		}
+	}
+
+	private void op(int opcode) {
+		code.write(opcode);
+	}
+
+	private void op(int opcode, int operand) {
+		code.write(opcode);
+		code.write(operand >> 8);
+		code.write(operand);
+	}
+
+	private void branch(int opcode, Label label) {
+		int at = code.size();
+		op(opcode, 0);
+		label.reference(at);
+	}
+
+	private void jump(Label label) {
+		branch(GOTO, label);
+	}
+
+	private void iload(int local) {
+		code.write(ILOAD);
+		code.write(local);
+	}
+
+	private void istore(int local) {
+		code.write(ISTORE);
+		code.write(local);
+	}
+
+	private void aload(int local) {
+		code.write(ALOAD);
+		code.write(local);
+	}
+
+	private void astore(int local) {
+		code.write(ASTORE);
+		code.write(local);
+	}
+
+	private void push(int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		}
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		}
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH, value);
+		}
+		else {
+			op(LDC_W, constant(TAG_INTEGER, new Integer(value)));
+		}
+	}
+
+	private void ldc2(long value) {
+		op(LDC2_W, constant(TAG_LONG, new Long(value)));
+	}
+
+	private void getfield(String owner, String name, String type) {
+		op(GETFIELD, member(TAG_FIELDREF, owner, name, type));
+	}
+
+	private void invoke(String owner, String name, String type) {
+		op(INVOKEVIRTUAL, member(TAG_METHODREF, owner, name, type));
+	}
+
+	/*
+	 * The constant pool.
+	 */
+
+	private int constant(int tag, Object value) {
+		String key = tag + ":" + value;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index.intValue();
+
+		try {
+			switch (tag) {
+			case TAG_UTF8:
+				pool.writeByte(tag);
+				pool.writeUTF((String) value);
+				break;
+			case TAG_INTEGER:
+				pool.writeByte(tag);
+				pool.writeInt(((Integer) value).intValue());
+				break;
+			case TAG_LONG:
+				pool.writeByte(tag);
+				pool.writeLong(((Long) value).longValue());
+				break;
+			case TAG_CLASS:
+				int name = constant(TAG_UTF8, value);
+				pool.writeByte(tag);
+				pool.writeShort(name);
+				break;
+			default:
+				Lib.assertNotReached();
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		int result = poolCount;
+		poolCount += (tag == TAG_LONG) ? 2 : 1;
+		constants.put(key, new Integer(result));
+		return result;
+	}
+
+	private int member(int tag, String owner, String name, String type) {
+		String key = tag + ":" + owner + "." + name + type;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index.intValue();
+
+		int ownerIndex = constant(TAG_CLASS, owner);
+		int nameIndex = constant(TAG_UTF8, name);
+		int typeIndex = constant(TAG_UTF8, type);
+
+		try {
+			pool.writeByte(TAG_NAMEANDTYPE);
+			pool.writeShort(nameIndex);
+			pool.writeShort(typeIndex);
+			pool.writeByte(tag);
+			pool.writeShort(ownerIndex);
+			pool.writeShort(poolCount);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		int result = poolCount + 1;
+		poolCount += 2;
+		constants.put(key, new Integer(result));
+		return result;
+	}
+
+	private byte[] classFile(int tryStart, int handler) throws IOException {
+		if (tooLarge)
+			return null;
+
+		byte[] run = code.toByteArray();
+
+		// the constructor just calls the superclass constructor
+		code.reset();
+		aload(0);
+		op(INVOKESPECIAL, member(TAG_METHODREF, traceClass, "<init>", "()V"));
+		op(RETURN);
+		byte[] init = code.toByteArray();
+
+		code.reset();
+		op(NEW, constant(TAG_CLASS, className));
+		op(DUP);
+		op(INVOKESPECIAL, member(TAG_METHODREF, className, "<init>", "()V"));
+		op(ARETURN);
+		byte[] newTrace = code.toByteArray();
+
+		int thisClass = constant(TAG_CLASS, className);
+		int superClass = constant(TAG_CLASS, traceClass);
+		int codeName = constant(TAG_UTF8, "Code");
+		int initName = constant(TAG_UTF8, "<init>");
+		int initType = constant(TAG_UTF8, "()V");
+		int runName = constant(TAG_UTF8, "run");
+		int runType = constant(TAG_UTF8, "(I)I");
+		int newTraceName = constant(TAG_UTF8, "newTrace");
+		int newTraceType = constant(TAG_UTF8, "()L" + traceClass + ";");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(classVersion);
+		out.writeShort(poolCount);
+		pool.flush();
+		out.write(poolBytes.toByteArray());
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(3); // methods
+
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(initName);
+		out.writeShort(initType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + init.length);
+		out.writeShort(1);
+		out.writeShort(1);
+		out.writeInt(init.length);
+		out.write(init);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(newTraceName);
+		out.writeShort(newTraceType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + newTrace.length);
+		out.writeShort(2);
+		out.writeShort(1);
+		out.writeInt(newTrace.length);
+		out.write(newTrace);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(runName);
+		out.writeShort(runType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + run.length + 8);
+		out.writeShort(maxStack);
+		out.writeShort(slot(numRegs));
+		out.writeInt(run.length);
+		out.write(run);
+		out.writeShort(1);
+		out.writeShort(tryStart);
+		out.writeShort(handler);
+		out.writeShort(handler);
+		out.writeShort(0); // catch everything
+		out.writeShort(0);
+
+		out.writeShort(0); // class attributes
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	/** The state needed to recover from an exception, per instruction. */
+	int[] faultPC, faultOffset, faultLoadTarget;
+
+	boolean[] faultInDelaySlot;
+
+	private Processor.BasicBlock[] region;
+
+	private String className;
+
+	private boolean[] used = new boolean[numRegs],
+			written = new boolean[numRegs];
+
+	private Label[][] variants;
+
+	private Label[] rests;
+
+	private int[] restPending = new int[maxBlocks];
+
+	private ArrayList<int[]> worklist = new ArrayList<int[]>();
+
+	private ArrayList<Exit> exits = new ArrayList<Exit>();
+
+	private Label commonExit = new Label();
+
+	private ArrayList<Integer> faultPCs = new ArrayList<Integer>(),
+			faultOffsets = new ArrayList<Integer>(),
+			faultLoadTargets = new ArrayList<Integer>();
+
+	private ArrayList<Boolean> faultDelaySlots = new ArrayList<Boolean>();
+
+	private CodeBuffer code = new CodeBuffer();
+
+	private boolean tooLarge = false;
+
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+
+	private int poolCount = 1;
+
+	private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+	/** The maximum number of blocks in a region. */
+	static final int maxBlocks = 32;
+
+	private static final int numRegs = 32;
+
+	private static final int maxCodeSize = 0x7000, maxStack = 16;
+
+	private static final int classVersion = 49;
+
+	private static final String traceClass =
+			"nachos/machine/Processor$CompiledTrace";
+
+	// local variable slots
+	private static final int lBudget = 1, lRegs = 2, lCount = 3,
+			lLoadValue = 4, lTarget = 5, lIndex = 6, lTmp = 7, lException = 8,
+			lExitPC = 9, lExitNextPC = 10, lExitLoad = 11, lExitCount = 12,
+			lRegBase = 12;
+
+	private static final int TAG_UTF8 = 1, TAG_INTEGER = 3, TAG_LONG = 5,
+			TAG_CLASS = 7, TAG_FIELDREF = 9, TAG_METHODREF = 10,
+			TAG_NAMEANDTYPE = 12;
+
+	private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010,
+			ACC_SUPER = 0x0020;
+
+	private static final int ICONST_0 = 3, ICONST_1 = 4, BIPUSH = 16,
+			SIPUSH = 17, LDC_W = 19, LDC2_W = 20, ILOAD = 21, ALOAD = 25,
+			IALOAD = 46, ISTORE = 54, ASTORE = 58, IASTORE = 79, POP = 87,
+			DUP = 89, IADD = 96, LADD = 97, ISUB = 100, LSUB = 101, IMUL = 104,
+
+			LMUL = 105, ISHL = 120, ISHR = 122, LSHR = 123, IAND = 126,
+			LAND = 127, IOR = 128, IXOR = 130, I2L = 133, L2I = 136,
+			IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157,
+			IFLE = 158, IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161,
+			IF_ICMPGT = 163, IF_ICMPLE = 164, GOTO = 167, IRETURN = 172,
+			ARETURN = 176, RETURN = 177, GETFIELD = 180, INVOKEVIRTUAL = 182,
+			INVOKESPECIAL = 183, NEW = 187, ATHROW = 191;
+}
@@ -42,6 +42,15 @@ public class PostOffice {
 		};
 		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
 
+		Metrics metrics = Machine.metrics();
+		messagesSent = metrics.counter("net_messages_sent", "messages sent");
+		messagesDelivered = metrics.counter("net_messages_delivered",
+				"messages put in a mailbox");
+		messagesDropped = metrics.counter("net_messages_dropped",
+				"packets received that were not valid messages");
+		sendTicks = metrics.histogram("net_send_ticks",
+				"ticks from calling send() until the link took the message");
+
 		KThread t = new KThread(new Runnable() {
 			public void run() {
 				postalDelivery();
@@ -86,6 +95,7 @@ public class PostOffice {
 				mail = new MailMessage(p);
 			}
 			catch (MalformedPacketException e) {
+				messagesDropped.increment();
 				continue;
 			}
 
@@ -95,6 +105,7 @@ public class PostOffice {
 
 			// atomically add message to the mailbox and wake a waiting thread
 			queues[mail.dstPort].add(mail);
+			messagesDelivered.increment();
 		}
 	}
 
@@ -113,11 +124,16 @@ public class PostOffice {
 		if (Lib.test(dbgNet))
 			System.out.println("sending mail: " + mail);
 
+		long startTime = Machine.timer().getTime();
+
 		sendLock.acquire();
 
 		Machine.networkLink().send(mail.packet);
 		messageSent.P();
 
+		messagesSent.increment();
+		sendTicks.record(Machine.timer().getTime() - startTime);
+
 		sendLock.release();
 	}
 
@@ -138,5 +154,9 @@ public class PostOffice {
 
 	private Lock sendLock;
 
+	private Metrics.Counter messagesSent, messagesDelivered, messagesDropped;
+
+	private Metrics.Histogram sendTicks;
+
 	private static final char dbgNet = 'n';
 }
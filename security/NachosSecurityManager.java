@@ -275,10 +275,33 @@ public class NachosSecurityManager extends SecurityManager {
 			}
 		}
 
+		// the JVM starts the carrier threads of virtual threads on demand
+		if (perm instanceof RuntimePermission && !isPrivileged()
+				&& startingCarrierThread())
+			return;
+
 		// default to requiring privilege
 		verifyPrivilege(perm);
 	}
 
+	/**
+	 * Test whether the JVM is starting a carrier thread to run virtual threads
+	 * on. It does so whenever it needs another, which can be in the middle of
+	 * any Nachos thread waking up another when <tt>TCB.virtualThreads</tt> is
+	 * set.
+	 */
+	private boolean startingCarrierThread() {
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (int i = 0; i < stack.length; i++) {
+			if (stack[i].getClassName().equals(
+					"jdk.internal.misc.CarrierThread"))
+
+				return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * Called by the <tt>java.lang.Thread</tt> constructor to determine a thread
 	 * group for a child thread of the current thread. The caller must be
@@ -157,6 +157,49 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by <i>count</i> ticks at once. This has
+		 * the same effect as <i>count</i> calls to <tt>tick()</tt>, provided
+		 * that no pending interrupt becomes due before the last of them.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the time of the next interrupt, or <tt>Long.MAX_VALUE</tt>
+		 * if none are pending.
+		 */
+		public long nextInterruptTime();
+
+		/**
+		 * Note that a secondary CPU has started running at most <i>limit</i>
+		 * user instructions on its own host thread. It must call
+		 * <tt>stopCPU()</tt> with the same <i>type</i> when it stops.
+		 * 
+		 * @param type a name for the interrupt the CPU raises when it stops.
+		 * @param limit the most instructions the CPU will run.
+		 */
+		public void startCPU(String type, int limit);
+
+		/**
+		 * Note that a secondary CPU has stopped after running <i>executed</i>
+		 * instructions. Unlike the other methods, this one is called on the
+		 * CPU's own host thread. The kernel takes the stop at a point set by
+		 * simulated time alone, charges <i>executed</i> user ticks, and then
+		 * invokes <i>handler</i> as an interrupt.
+		 * 
+		 * @param type the name passed to <tt>startCPU()</tt>.
+		 * @param executed the number of instructions the CPU ran.
+		 * @param handler the interrupt handler to call.
+		 */
+		public void stopCPU(String type, int executed, Runnable handler);
 	}
 
 	/**
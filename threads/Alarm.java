@@ -23,13 +23,21 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+
+		Metrics metrics = Machine.metrics();
+		sleeps = metrics.counter("alarm_sleeps",
+				"calls to waitUntil() that slept");
+		sleeping = metrics.gauge("alarm_sleeping",
+				"threads waiting in waitUntil()");
+		lateTicks = metrics.histogram("alarm_late_ticks",
+				"ticks a thread woke up after its wake time");
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler would let it run on.
 	 */
 	public void timerInterrupt() {
 		/**
@@ -44,13 +52,16 @@ public class Alarm {
 		while ((wt = sleepQueue.peek()) != null 
 				&& wt.getWakeTime() <= machineTime) {
 			sleepQueue.poll();
+			sleeping.add(-1);
+			lateTicks.record(machineTime - wt.getWakeTime());
 			wt.getThread().ready();  // move this thread on the ready queue
 			Lib.debug(dbgAlarm, "    " + wt.getThread() 
 					+ " wakes up @" + Machine.timer().getTime()
 					+ " (should wake up @" + wt.wakeTime + ")");
 		}
 		
-		KThread.yield();
+		if (ThreadedKernel.scheduler.preemptOnTimer(KThread.currentThread()))
+			KThread.yield();
 	}
 
 	/**
@@ -84,6 +95,8 @@ public class Alarm {
 		boolean intStatus = Machine.interrupt().disable();
 		WaitingThread current = new WaitingThread(KThread.currentThread(), wakeTime);
 		sleepQueue.add(current);
+		sleeps.increment();
+		sleeping.add(1);
 		
 		KThread.sleep();	// have current thread relinquish its execution
 		Machine.interrupt().restore(intStatus);
@@ -133,5 +146,11 @@ public class Alarm {
 	private PriorityBlockingQueue<WaitingThread> sleepQueue 
 				= new PriorityBlockingQueue<WaitingThread>(10, new WaitingThreadComparator());
 	
+	private Metrics.Counter sleeps;
+
+	private Metrics.Gauge sleeping;
+
+	private Metrics.Histogram lateTicks;
+
 	private static final char dbgAlarm = 'A';
 }
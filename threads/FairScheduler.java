@@ -0,0 +1,527 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the CPU among threads in proportion to their
+ * weights, after the Linux completely fair scheduler.
+ *
+ * <p>
+ * Every thread has a virtual runtime: the ticks it has run, scaled down by
+ * its weight. A queue keeps its waiting threads in a red-black tree ordered by
+ * virtual runtime, and the next thread is always the one that has had the
+ * least, the thread that has waited longest winning ties. A thread's weight
+ * comes from its effective priority, each step up giving it about 1.25 times
+ * the CPU, so no thread is ever starved, however many others have higher
+ * priority.
+ *
+ * <p>
+ * The running thread is charged, by <tt>Machine.timer().getTime()</tt>, when
+ * it gives up the CPU, and also when it starts waiting on a queue, so that it
+ * is placed by its up-to-date virtual runtime. New and waking threads are
+ * placed against a floor, the most virtual runtime of any thread yet given
+ * the CPU, which only dispatching raises. A thread that has been blocked
+ * comes back no further behind the floor than one timer interrupt's worth of
+ * virtual runtime, so an interactive thread runs soon after it wakes, but
+ * cannot bank its sleep to shut out the batch threads. A new thread starts
+ * level with the floor.
+ *
+ * <p>
+ * A queue that transfers priority donates the highest effective priority of
+ * its waiters to its holder, which then runs, and is charged, at that weight.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+	}
+
+	/**
+	 * Allocate a new fair thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * priority from waiting threads to the owning thread.
+	 * @return a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).effectivePriority;
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Charge the current thread for the time it has run, since it is about
+	 * to give up the CPU.
+	 */
+	public void stopRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		FairThreadState ts = getThreadState(thread);
+		ts.charge();
+		ts.running = false;
+	}
+
+	/**
+	 * Start the clock on a thread that is about to run, and raise the floor
+	 * that new and waking threads are placed against to its virtual runtime.
+	 */
+	public void startRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		FairThreadState ts = getThreadState(thread);
+		ts.running = true;
+		ts.runningSince = Machine.timer().getTime();
+
+		// only dispatching moves the floor, not handing over a lock
+		if (ts.vruntime > minVruntime)
+			minVruntime = ts.vruntime;
+	}
+
+	/**
+	 * The default priority for a new thread. Do not change this value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum priority that a thread can have. Do not change this value.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * The maximum priority that a thread can have. Do not change this value.
+	 */
+	public static final int priorityMaximum = 7;
+
+	/**
+	 * The weight of each priority, 1.25 times the one below, with the default
+	 * priority at 1024.
+	 */
+	private static final int[] weights = { 819, 1024, 1280, 1600, 2000, 2500,
+			3125, 3906 };
+
+	/**
+	 * The most virtual runtime a thread that has been blocked may be behind
+	 * the least yet dispatched when it starts waiting again: one timer
+	 * interrupt's worth at the default priority.
+	 */
+	private static final long wakeupCredit = (long) Stats.TimerTicks << 10;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected FairThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new FairThreadState(thread);
+
+		return (FairThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime.
+	 *
+	 * <p>
+	 * Alongside the tree, the queue counts its waiters at each effective
+	 * priority, with a bitmap of the nonzero counts, so that a queue that
+	 * transfers priority knows the highest at once. It remembers what it
+	 * donated to its holder, so that it can take exactly that back when the
+	 * waiters or the holder change.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		FairQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairThreadState ts = pickNextThread();
+			if (ts == null)
+				return null;
+
+			unlink(ts);
+
+			// the remaining waiters now donate to this thread
+			ts.acquire(this);
+
+			return ts.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected FairThreadState pickNextThread() {
+			return waiters.isEmpty() ? null : waiters.first();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (FairThreadState ts : waiters)
+				System.out.print(ts.thread + " (" + ts.vruntime + ") ");
+		}
+
+		/**
+		 * Add a thread to the tree. The caller must call
+		 * <tt>updateDonation()</tt> afterwards.
+		 *
+		 * @param ts the thread, which must not already be waiting.
+		 */
+		private void link(FairThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == null);
+
+			ts.sequence = nextSequence++;
+			waiters.add(ts);
+			count(ts.effectivePriority, 1);
+			ts.waitingOn = this;
+		}
+
+		/**
+		 * Remove a waiting thread from the tree. The caller must call
+		 * <tt>updateDonation()</tt> afterwards.
+		 *
+		 * @param ts the thread, which must be waiting on this queue.
+		 */
+		private void unlink(FairThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			waiters.remove(ts);
+			count(ts.effectivePriority, -1);
+			ts.waitingOn = null;
+		}
+
+		private void count(int priority, int delta) {
+			counts[priority] += delta;
+			if (counts[priority] == 0)
+				occupied &= ~(1 << priority);
+			else
+				occupied |= 1 << priority;
+		}
+
+		/**
+		 * Set a new holder of this queue, taking back what the queue donated
+		 * to the old holder and donating it to the new one.
+		 *
+		 * @param holder the new holder.
+		 */
+		private void setHolder(FairThreadState holder) {
+			if (holder != resHolder && donation >= 0) {
+				FairThreadState oldHolder = resHolder;
+				oldHolder.removeDonation(donation);
+				donation = -1;
+
+				FairQueue queue = oldHolder.updateEffectivePriority();
+				if (queue != null)
+					queue.updateDonation();
+			}
+
+			resHolder = holder;
+			updateDonation();
+		}
+
+		/**
+		 * Bring what this queue donates to its holder up to date, and follow
+		 * the change down the chain of holders, stopping as soon as nothing
+		 * changes.
+		 */
+		private void updateDonation() {
+			FairQueue queue = this;
+			while (queue != null) {
+				int top = -1;
+				if (queue.transferPriority && queue.resHolder != null
+						&& queue.occupied != 0)
+					top = 31 - Integer.numberOfLeadingZeros(queue.occupied);
+
+				if (top == queue.donation)
+					return;
+
+				FairThreadState holder = queue.resHolder;
+				if (queue.donation >= 0)
+					holder.removeDonation(queue.donation);
+				if (top >= 0)
+					holder.addDonation(top);
+				queue.donation = top;
+
+				queue = holder.updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer priority from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting threads, by virtual runtime. */
+		private TreeSet<FairThreadState> waiters = new TreeSet<FairThreadState>(
+				byVruntime);
+
+		/** The number of waiters at each effective priority. */
+		private int[] counts = new int[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if a waiter has effective priority <i>p</i>. */
+		private int occupied = 0;
+
+		/** The priority donated to the holder, or -1 if none. */
+		private int donation = -1;
+
+		/** The thread holding the resource this queue guards. */
+		private FairThreadState resHolder = null;
+	}
+
+	/**
+	 * Orders threads by virtual runtime, then by when they started waiting.
+	 */
+	private static final Comparator<FairThreadState> byVruntime =
+			new Comparator<FairThreadState>() {
+		public int compare(FairThreadState a, FairThreadState b) {
+			if (a.vruntime != b.vruntime)
+				return (a.vruntime < b.vruntime) ? -1 : 1;
+			if (a.sequence != b.sequence)
+				return (a.sequence < b.sequence) ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/**
+	 * The scheduling state of a thread: its priority and weight, its virtual
+	 * runtime, the queue it waits on, and the priorities donated to it.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class FairThreadState {
+		/**
+		 * Allocate a new <tt>FairThreadState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public FairThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the priority of the associated thread to the specified value.
+		 *
+		 * @param priority the new priority.
+		 */
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			this.priority = priority;
+
+			FairQueue queue = updateEffectivePriority();
+			if (queue != null)
+				queue.updateDonation();
+		}
+
+		/**
+		 * If the thread is running, add the time since it was last charged
+		 * to its virtual runtime, scaled down by its weight.
+		 */
+		private void charge() {
+			if (!running)
+				return;
+
+			// a running thread is on no queue, so its key can change
+			Lib.assertTrue(waitingOn == null);
+
+			long now = Machine.timer().getTime();
+			vruntime += ((now - runningSince) << 20)
+					/ weights[effectivePriority];
+
+			runningSince = now;
+		}
+
+		/**
+		 * Called when <tt>waitForAccess(thread)</tt> is invoked on the
+		 * specified queue. If the thread is running, it is charged and stops
+		 * running; if it was blocked, it is placed no further behind than
+		 * <tt>wakeupCredit</tt>.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(FairQueue waitQueue) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (running) {
+				charge();
+				running = false;
+			}
+			else if (!placed)
+				vruntime = minVruntime;
+			else
+				vruntime = Math.max(vruntime, minVruntime - wakeupCredit);
+			placed = true;
+
+			waitQueue.link(this);
+			waitQueue.updateDonation();
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue the thread has acquired.
+		 */
+		public void acquire(FairQueue waitQueue) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waitQueue.transferPriority)
+				waitQueue.setHolder(this);
+		}
+
+		private void addDonation(int priority) {
+			if (donations[priority]++ == 0)
+				donated |= 1 << priority;
+		}
+
+		private void removeDonation(int priority) {
+			Lib.assertTrue(donations[priority] > 0);
+			if (--donations[priority] == 0)
+				donated &= ~(1 << priority);
+		}
+
+		/**
+		 * Recompute the effective priority from the thread's own priority and
+		 * its donations, recounting it in the queue it waits on.
+		 *
+		 * @return the queue the thread is waiting on if its effective priority
+		 * changed, whose donation the caller must update, or <tt>null</tt>.
+		 */
+		private FairQueue updateEffectivePriority() {
+			int ep = priority;
+			if (donated != 0)
+				ep = Math.max(ep, 31 - Integer.numberOfLeadingZeros(donated));
+
+			if (ep == effectivePriority)
+				return null;
+
+			// charge the time run so far at the old weight
+			charge();
+
+			if (waitingOn != null) {
+				waitingOn.count(effectivePriority, -1);
+				waitingOn.count(ep, 1);
+			}
+			effectivePriority = ep;
+			return waitingOn;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The priority of the associated thread. */
+		protected int priority = priorityDefault;
+
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority = priorityDefault;
+
+		/**
+		 * The virtual runtime, in 1/1024 ticks run at the default priority.
+		 */
+		protected long vruntime = 0;
+
+		/** Orders threads with equal virtual runtime. */
+		private long sequence;
+
+		/** <tt>true</tt> if the thread has the CPU and is not yet charged. */
+		private boolean running = false;
+
+		/** When the thread was last charged, if it is running. */
+		private long runningSince;
+
+		/** <tt>true</tt> once the thread has been given a virtual runtime. */
+		private boolean placed = false;
+
+		/** The queue this thread is in, if it is waiting. */
+		private FairQueue waitingOn = null;
+
+		/** How many held queues donate each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if some held queue donates priority <i>p</i>. */
+		private int donated = 0;
+	}
+
+	/**
+	 * The most virtual runtime of any thread yet dispatched. The ready queue
+	 * always dispatches its least, so this trails the threads ready to run.
+	 */
+	private long minVruntime = 0;
+
+	/** Counts threads as they start waiting, to break ties. */
+	private long nextSequence = 0;
+}
@@ -65,6 +65,14 @@ public class KThread {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 			readyQueue.acquire(this);
 
+			Metrics metrics = Machine.metrics();
+			dispatches = metrics.counter("scheduler_dispatches",
+					"threads chosen to run by the scheduler");
+			idleDispatches = metrics.counter("scheduler_idle",
+					"times no thread was ready to run");
+			readyTicks = metrics.histogram("scheduler_ready_ticks",
+					"ticks a thread spent on the ready queue");
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
@@ -284,8 +292,10 @@ public class KThread {
 		status = statusReady;
 		// If this is not the idle thread, then tell the ready 
 		// queue this thread is waiting to run.
-		if (this != idleThread)
+		if (this != idleThread) {
+			readyTime = Machine.timer().getTime();
 			readyQueue.waitForAccess(this);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -319,6 +329,10 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * Since only an interrupt can make another thread ready, the machine skips
+	 * ahead to the next one whenever the idle thread is chosen to run.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
@@ -341,9 +355,18 @@ public class KThread {
 	 * using <tt>run()</tt>.
 	 */
 	private static void runNextThread() {
+		ThreadedKernel.scheduler.stopRunning(currentThread);
+
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			idleDispatches.increment();
+			Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
+		else {
+			dispatches.increment();
+			readyTicks.record(Machine.timer().getTime() - nextThread.readyTime);
+		}
 
 		nextThread.run();
 	}
@@ -379,6 +402,8 @@ public class KThread {
 
 		currentThread = this;
 
+		ThreadedKernel.scheduler.startRunning(this);
+
 		tcb.contextSwitch();
 
 		currentThread.restoreState();
@@ -487,6 +512,9 @@ public class KThread {
 
 	private TCB tcb;
 
+	/** The time this thread was last put on the ready queue. */
+	private long readyTime;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -503,6 +531,10 @@ public class KThread {
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
+
+	private static Metrics.Counter dispatches, idleDispatches;
+
+	private static Metrics.Histogram readyTicks;
 	
 	/** The queue storing threads which called join() for this thread */
 	private LinkedList<KThread> joinQueue = null;
@@ -2,11 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.PriorityBlockingQueue;
-
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -426,12 +421,23 @@ public class LotteryScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread has a slot in a Fenwick tree of ticket counts, so
+	 * drawing a winner, adding or removing a waiter, and changing a waiter's
+	 * tickets each take <i>O(log n)</i> time, and the total is always at
+	 * hand. Slots freed by departing threads are reused, and the tree doubles
+	 * when it fills.
+	 * 
+	 * <p>
+	 * If the queue transfers priority, its holder gets the total of its
+	 * waiters' tickets, and the queue remembers what it donated so that it
+	 * can take exactly that back when the waiters or the holder change.
 	 */
 	protected class LotteryQueue extends ThreadQueue {
 		LotteryQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
-			priorityQueue = new PriorityBlockingQueue<LotteryThreadState>();
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -449,91 +455,64 @@ public class LotteryScheduler extends Scheduler {
 		                       + this.transferPriority + " holder: " 
 					           + (resHolder == null ? "none" : getHolder().thread));
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
 			LotteryThreadState lts = dequeueWinner();
 			
 			if (lts == null)
 				return null;
 			
-			// update the efficient priority if possible.
+			// the remaining waiters now donate to this thread
 			lts.acquire(this);
-			lts.currentWait = null;
 			
 			return lts.thread;		
 		}
 		
 		/**
-		 * Randomly choose a thread to dequeue. 
+		 * Randomly choose a thread to dequeue, with a chance proportional to
+		 * its tickets. Exactly one random number is drawn whenever the queue
+		 * is not empty.
 		 */
 		private LotteryThreadState dequeueWinner() {
-//			System.err.println("Lottery dequeueWinner() is called!");
-			if (!priorityQueue.isEmpty()) {
-				/**
-				 * Refresh the queue.
-				 * XXX: This implementation is not efficient. 
-				 */
-				PriorityBlockingQueue<LotteryThreadState> tmp = 
-						new PriorityBlockingQueue<LotteryThreadState>();
-				while (!priorityQueue.isEmpty()) {
-					tmp.add(priorityQueue.poll());
-				}
-				priorityQueue = tmp;
-				print();
-
-				// lottery scheduling part
-				int ticketSum = 0;
-				ArrayList<LotteryThreadState> candidates = new ArrayList<LotteryThreadState>();
+			if (count == 0)
+				return null;
 
-				for (LotteryThreadState ts : priorityQueue) {
-					ticketSum += ts.getEffectivePriority();
-					candidates.add(ts);
-				}
-				Lib.debug(dbgPS, "\tTotal tickets: " + ticketSum);
-				
-				if (ticketSum > 0) {
-					int currentTickets = 0;
-					int pickedTickets = Lib.random(ticketSum);
-					Lib.debug(dbgPS, "\tPicked tickets: " + pickedTickets);
-					for (LotteryThreadState ts : candidates) {
-						currentTickets += ts.getEffectivePriority();
-						if (pickedTickets < currentTickets) {
-							Lib.debug(dbgPS, "\tNext running thread: " + ts.thread);
-							priorityQueue.remove(ts);
-							return ts;
-						}
-					}
+			Lib.debug(dbgPS, "\tTotal tickets: " + total);
+			long pickedTickets = Lib.random(total);
+			Lib.debug(dbgPS, "\tPicked tickets: " + pickedTickets);
+
+			// find the first slot whose running total exceeds the pick
+			int slot = 0;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (slot + step <= slots.length
+						&& tree[slot + step] <= pickedTickets) {
+					slot += step;
+					pickedTickets -= tree[slot];
 				}
-			} 
-			
-			return null;
+			}
+
+			LotteryThreadState ts = slots[slot];
+			Lib.debug(dbgPS, "\tNext running thread: " + ts.thread);
+			unlink(ts);
+			return ts;
 		}
 
 		/**
-		 * Return the next thread that <tt>nextThread()</tt> would return,
-		 * without modifying the state of this queue.
+		 * Return the waiting thread with the most tickets, the one that has
+		 * waited longest among equals. <tt>nextThread()</tt> holds a lottery,
+		 * so this is only the most likely winner. This takes linear time, and
+		 * nothing on the scheduling path calls it.
 		 * 
-		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 * @return the waiting thread with the most tickets.
 		 */
 		protected LotteryThreadState pickNextThread() {
-			// implement me
-			if (!priorityQueue.isEmpty()) {
-				Lib.debug(dbgPS, "####(L) In pickNextThread(): next: "
-						+ priorityQueue.peek().thread);
-				/**
-				 * Refresh the queue.
-				 * XXX: This implementation is not efficient. 
-				 */
-				PriorityBlockingQueue<LotteryThreadState> tmp = 
-						new PriorityBlockingQueue<LotteryThreadState>();
-				while (!priorityQueue.isEmpty()) {
-					tmp.add(priorityQueue.poll());
-				}
-				priorityQueue = tmp;
-				print();
-				return priorityQueue.peek();
-			} else {
-				return null;
+			LotteryThreadState next = null;
+			for (int i = 0; i < used; i++) {
+				LotteryThreadState ts = slots[i];
+				if (ts != null && (next == null || ts.tickets > next.tickets
+						|| (ts.tickets == next.tickets
+								&& ts.enqueuingTime < next.enqueuingTime)))
+					next = ts;
 			}
+			return next;
 		}
 
 		public void print() {
@@ -541,12 +520,88 @@ public class LotteryScheduler extends Scheduler {
 			// implement me (if you want)
 			Lib.debug(dbgPS, "/*********** Print current queue, transferPriority ? "
 						+ transferPriority);
-			for (LotteryThreadState t : priorityQueue) {
-				Lib.debug(dbgPS, t.thread + ": P = " + t.priority + ", EP = " 
-							+ t.effectivePriority + ", enqueued @" + t.enqueuingTime);
+			for (int i = 0; i < used; i++) {
+				LotteryThreadState t = slots[i];
+				if (t != null)
+					Lib.debug(dbgPS, t.thread + ": P = " + t.priority
+							+ ", EP = " + t.tickets + ", enqueued @"
+							+ t.enqueuingTime);
 			}
 			Lib.debug(dbgPS, "**********************************************************/");
 		}
+
+		/**
+		 * Give a thread a slot in the tree. The caller must call
+		 * <tt>updateDonation()</tt> afterwards.
+		 * 
+		 * @param ts the thread, which must not already be waiting.
+		 */
+		protected void link(LotteryThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == null);
+
+			int slot;
+			if (numFree > 0)
+				slot = freeSlots[--numFree];
+			else {
+				if (used == slots.length)
+					grow();
+				slot = used++;
+			}
+
+			slots[slot] = ts;
+			ts.slot = slot;
+			ts.waitingOn = this;
+			count++;
+			addTickets(slot, ts.tickets);
+		}
+
+		/**
+		 * Free a waiting thread's slot. The caller must call
+		 * <tt>updateDonation()</tt> afterwards.
+		 * 
+		 * @param ts the thread, which must be waiting on this queue.
+		 */
+		protected void unlink(LotteryThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			addTickets(ts.slot, -ts.tickets);
+			slots[ts.slot] = null;
+			freeSlots[numFree++] = ts.slot;
+			count--;
+			ts.waitingOn = null;
+		}
+
+		/**
+		 * Add to the tickets in a slot.
+		 * 
+		 * @param slot the slot.
+		 * @param delta the number of tickets to add, which may be negative.
+		 */
+		protected void addTickets(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+			total += delta;
+		}
+
+		private void grow() {
+			LotteryThreadState[] oldSlots = slots;
+			slots = new LotteryThreadState[oldSlots.length * 2];
+			System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+
+			int[] oldFree = freeSlots;
+			freeSlots = new int[slots.length];
+			System.arraycopy(oldFree, 0, freeSlots, 0, numFree);
+
+			// rebuild the tree in linear time
+			tree = new long[slots.length + 1];
+			for (int i = 1; i <= slots.length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].tickets;
+				int parent = i + (i & -i);
+				if (parent <= slots.length)
+					tree[parent] += tree[i];
+			}
+		}
 		
 		/** 
 		 * Get the resource holder of this queue.
@@ -558,12 +613,49 @@ public class LotteryScheduler extends Scheduler {
 		}
 		
 		/**
-		 * Set a new resource holder of this queue.
+		 * Set a new resource holder of this queue, taking back what the queue
+		 * donated to the old holder and donating it to the new one.
 		 * 
 		 * @param holder The new holder to be set.
 		 */
 		public void setHolder(LotteryThreadState holder) {
+			if (holder != resHolder && donation != 0) {
+				LotteryThreadState oldHolder = resHolder;
+				long oldDonation = donation;
+				donation = 0;
+
+				LotteryQueue queue = oldHolder.addDonation(-oldDonation);
+				if (queue != null)
+					queue.updateDonation();
+			}
+
 			resHolder = holder;
+			updateDonation();
+		}
+
+		/**
+		 * Bring what this queue donates to its holder up to date, and follow
+		 * the change down the chain of holders: a holder whose tickets change
+		 * changes the total of the queue it waits on, which that queue passes
+		 * on in turn. Each step costs <i>O(log n)</i>, and the walk stops at
+		 * the first queue whose donation does not change.
+		 */
+		protected void updateDonation() {
+			LotteryQueue queue = this;
+			while (queue != null) {
+				long newDonation = 0;
+				if (queue.transferPriority && queue.resHolder != null)
+					newDonation = queue.total;
+
+				long delta = newDonation - queue.donation;
+				if (delta == 0)
+					return;
+				queue.donation = newDonation;
+
+				Lib.debug(dbgPS, "   ***(L) " + queue.resHolder.thread
+						+ " is donated " + newDonation + " tickets");
+				queue = queue.resHolder.addDonation(delta);
+			}
 		}
 
 		/**
@@ -572,21 +664,46 @@ public class LotteryScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 		
-		/** The scheduling priority queue */
-		public PriorityBlockingQueue<LotteryThreadState> priorityQueue = null;
+		/** The waiting thread in each slot, or <tt>null</tt>. */
+		protected LotteryThreadState[] slots =
+				new LotteryThreadState[initialSlots];
+
+		/** The Fenwick tree over the slots' tickets, indexed from 1. */
+		protected long[] tree = new long[initialSlots + 1];
+
+		/** The free slots below <tt>used</tt>. */
+		protected int[] freeSlots = new int[initialSlots];
+
+		/** The number of free slots, slots ever used, and waiting threads. */
+		protected int numFree = 0, used = 0, count = 0;
+
+		/** The tickets of all waiting threads. */
+		protected long total = 0;
+
+		/** The tickets donated to the holder. */
+		protected long donation = 0;
 		
 		/** The resource (lock, semaphore, etc.) holder of this wait queue. */
 		protected LotteryThreadState resHolder = null;
 	}
 
+	/** The number of slots a new lottery queue has, a power of two. */
+	private static final int initialSlots = 8;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * A thread's tickets are its own priority plus what the queues it holds
+	 * donate. They are kept as a <tt>long</tt>, because donations can add up
+	 * past <tt>Integer.MAX_VALUE</tt>; the effective priority is the tickets
+	 * capped at <tt>priorityMaximum</tt>.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class LotteryThreadState implements Comparable<LotteryThreadState> {
+	protected class LotteryThreadState {
 		/**
 		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -595,9 +712,6 @@ public class LotteryScheduler extends Scheduler {
 		 */
 		public LotteryThreadState(KThread thread) {
 			this.thread = thread;
-
-			doneeList = new ArrayList<LotteryThreadState>();
-			donatorList = new ArrayList<LotteryThreadState>();
 		}
 
 		/**
@@ -616,8 +730,7 @@ public class LotteryScheduler extends Scheduler {
 		 * @author liqiangw
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return effectivePriority;
+			return (int) Math.min(tickets, priorityMaximum);
 		}
 
 		/**
@@ -635,72 +748,43 @@ public class LotteryScheduler extends Scheduler {
 			
 			this.priority = priority;
 
-			// implement me
-			this.setEffectivePriority(priority);
+			LotteryQueue queue = setTickets(priority + donated);
+			if (queue != null)
+				queue.updateDonation();
 		}
-		
+
 		/**
-		 * Set the effective priority of the associated thread to the 
-		 * specified value.
+		 * Add to the tickets donated by the queues this thread holds.
 		 * 
-		 * @param priority the new effective priority.
-		 * @author liqiangw
+		 * @param delta the number of tickets to add, which may be negative.
+		 * @return the queue the thread is waiting on, whose donation the
+		 * caller must update, or <tt>null</tt>.
 		 */
-		public void setEffectivePriority(int priority) {
-			if (priority <= priorityMaximum 
-					&& priority >= priorityMinimum) {
-				if (priority == getEffectivePriority())
-					return;
-				
-				this.effectivePriority = priority;
-			
-				if (currentWait != null 
-						&& currentWait.transferPriority) {
-					this.donate();
-				}
-			}
+		protected LotteryQueue addDonation(long delta) {
+			donated += delta;
+			Lib.assertTrue(donated >= 0);
+			return setTickets(priority + donated);
 		}
-		
+
 		/**
-		 * Called when the current waiting thread should update the effective 
-		 * priorities of threads holding the resources. This method will
-		 * recursively update all effective priorities that are influenced
-		 * by the change of <tt>this.effectivePriority</tt>.
-		 * 
-		 * It will change the effective priorities of caller's donees.
+		 * Set the thread's tickets, and its slot's if it is waiting.
 		 * 
-		 * @author liqiangw
+		 * @param newTickets the new number of tickets.
+		 * @return the queue the thread is waiting on if its tickets changed,
+		 * or <tt>null</tt>.
 		 */
-		protected void donate() {
-			Lib.assertTrue(currentWait != null);
-			Lib.debug(dbgPS, "   ***(L) -> In donate() of " + this.thread 
-					          + " EP = " + this.getEffectivePriority());
-			if (this.doneeList.isEmpty())
-				return;
-			
-			for (LotteryThreadState donee : doneeList) {
-				Lib.debug(dbgPS, "      *** donee: " + donee.thread.toString());
-			}
-			
-			for (LotteryThreadState donee : doneeList) {
-				int tickets = 0;
-				/**
-				 * Should consider the case when multiple threads wait
-				 * on one thread. 
-				 */
-				for (LotteryThreadState donator : donee.donatorList) {
-					Lib.debug(dbgPS, "      " + donee.thread + " has donator: " + 
-							donator.thread + " EP = " + donator.effectivePriority);
-					tickets += donator.getEffectivePriority();
-				}
-				Lib.assertTrue(tickets >= 0);
-				donee.effectivePriority = tickets + donee.priority;
-				Lib.debug(dbgPS, "      -->" + donee.thread + " now has EP = " + 
-										 donee.effectivePriority);
-				
-				/** Be careful: there is a recursive call. */
-				donee.donate();
-			}
+		private LotteryQueue setTickets(long newTickets) {
+			if (newTickets == tickets)
+				return null;
+
+			Lib.debug(dbgPS, "      -->" + thread + " now has EP = "
+					+ newTickets);
+
+			long delta = newTickets - tickets;
+			tickets = newTickets;
+			if (waitingOn != null)
+				waitingOn.addTickets(slot, delta);
+			return waitingOn;
 		}
 
 		/**
@@ -721,42 +805,14 @@ public class LotteryScheduler extends Scheduler {
 			Lib.debug(dbgPS, "###(L) In " + this.thread.toString() + "--> waitForAccess()"
 					          + " = transport priority? " + waitQueue.transferPriority
 					          + " currentWait = " + waitQueue);
-			// implement me
 			Lib.assertTrue(Machine.interrupt().disabled());
 			Lib.assertTrue(waitQueue != null);
 			
 			enqueuingTime = Machine.timer().getTime(); // update enqueuing time
-			currentWait = waitQueue;
-			waitQueue.priorityQueue.add(this);
+			waitQueue.link(this);
 			
 			/** Donate to the resource holder of this queue. */
-			if (currentWait.transferPriority) {
-				LotteryThreadState holder;
-				if ((holder = waitQueue.getHolder()) != null) {
-					/**
-					 * Add the holder to the doneeList whenever the holder's
-					 * effective priority needs to be promoted. 
-					 */
-					Lib.debug(dbgPS, "   ### holder: " + holder.thread);
-					if (!doneeList.contains(holder)) {
-						Lib.debug(dbgPS, "         ---> this ("+ getEffectivePriority() 
-								       + ") add " + holder.thread + " (" + holder.getEffectivePriority()
-								       + ") to doneeList");
-						doneeList.add(holder);
-						holder.donatorList.add(this);
-					} else if (doneeList.contains(holder)) {
-						Lib.debug(dbgPS, "   ### doneeList has contained " + holder.thread);
-					} else {
-						Lib.debug(dbgPS, "   ### holder: " + holder.thread + " has higher EP = "
-								+ holder.effectivePriority + " than this EP = " + this.effectivePriority);
-					}
-				} else {
-					Lib.debug(dbgPS, "holder is null");
-				}
-				this.donate();
-//				Lib.debug(dbgPS, "++ After donation (wait), next thread: " 
-//		                  + currentWait.pickNextThread().thread);
-			}
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -773,95 +829,15 @@ public class LotteryScheduler extends Scheduler {
 			Lib.debug(dbgPS, "###(L) In " + this.thread.toString() + "--> acquire()"
 			           + " = transport priority? " + waitQueue.transferPriority
 			           + " currentWait = " + waitQueue);
-			// implement me
 			Lib.assertTrue(Machine.interrupt().disabled());
 			Lib.assertTrue(waitQueue != null);
 			
-			currentWait = waitQueue;
-		
 			/**
-			 * Find the thread whose effective priority should be
-			 * set back to its own priority.
-			 * 
-			 * This is the case when a thread releases a resource
-			 * and needs roll back its effective priority. 
+			 * The last holder loses the waiters' tickets, and this thread
+			 * gains them.
 			 */
-			if (currentWait.transferPriority) {
-				LotteryThreadState holder;
-				/**
-				 * If the holder of the wait queue is not null or self,
-				 * it must be the one who recently releases the 
-				 * resource, so that this thread can acquire it. 
-				 * That is how we can know who is the last holder.
-				 */
-				if ((holder = waitQueue.getHolder()) != null
-						                   && holder != this) {
-					/**
-					 * Very important step, otherwise holder.currentWait = null. 
-					 */
-					holder.currentWait = waitQueue;
-					
-					/**
-					 * Remove all the donators (from donatorList) who share the same
-					 * current wait queue with the previous resource holder.
-					 * 
-					 * We should iterate through all the donatorList of the holder
-					 * in order to handle the case when multiple threads may wait
-					 * on this lock. If it is not appropriately dealt, the effective
-					 * priority of the holder might be wrong.
-					 * 
-					 * The donators' doneeList should also be updated accordingly.
-					 */
-					Iterator<LotteryThreadState> it = holder.donatorList.iterator();
-					while (it.hasNext()) {
-						LotteryThreadState donator = it.next();
-						Lib.debug(dbgPS, "holder waits on: " + holder.currentWait
-								+ ", its donator waits on: " + donator.currentWait);
-						if (donator.currentWait == holder.currentWait) {
-							it.remove();
-							if (donator.doneeList.contains(holder)) {
-								donator.doneeList.remove(holder);
-							}
-						}
-					}
-					
-					/**
-					 * Re-calculate the effective priority for the
-					 * last holder (including itself). 
-					 */
-					int tickets = holder.getPriority();
-					for (LotteryThreadState t : holder.donatorList) {
-						if (t != this && t.currentWait != holder.currentWait) {
-							Lib.debug(dbgPS, "holder has donator: " + t.thread);
-							tickets += t.getEffectivePriority();
-						}
-					}
-					Lib.assertTrue(tickets >= holder.getPriority());
-					/**
-					 * it will call donate() eventually.
-					 */
-					holder.setEffectivePriority(tickets); 
-					Lib.debug(dbgPS, holder.thread + " has new EP = " + holder.effectivePriority);
-				} 
+			if (waitQueue.transferPriority)
 				waitQueue.setHolder(this);
-			}
-		}
-		
-		/**
-		 * The comparator of LotteryThreadState. 
-		 */
-		public int compareTo(LotteryThreadState that) {
-			if (this.getEffectivePriority() > that.getEffectivePriority()) {
-				return -1;
-			} else if (this.getEffectivePriority() < that.getEffectivePriority()) {
-				return 1;
-			} else {
-				if (this.enqueuingTime <= that.enqueuingTime) {
-					return -1;
-				} else {
-					return 1;
-				}
-			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -870,22 +846,22 @@ public class LotteryScheduler extends Scheduler {
 		/** The priority of the associated thread. */
 		protected int priority = priorityDefault;
 		
-		/** The effective priority of the associated thread. */
-		protected int effectivePriority = priorityDefault;
+		/** The tickets donated by the queues this thread holds. */
+		protected long donated = 0;
+		
+		/**
+		 * The tickets of the associated thread, its priority plus donations.
+		 */
+
+		protected long tickets = priorityDefault;
 		
 		/** The time staying in the waitQueue. */
 		protected long enqueuingTime = Long.MAX_VALUE;
 		
-		/** The priority queue this thread currently wait on. */
-		protected LotteryQueue currentWait = null;
-		
-		/** 
-		 * The list of threads who are donated by this thread. 
-		 * Note: It only contains direct donee(s).
-		 */
-		protected ArrayList<LotteryThreadState> doneeList = null;
+		/** The queue this thread is in, if it is waiting. */
+		protected LotteryQueue waitingOn = null;
 		
-		/** The list of threads who once donated to this thread. */
-		protected ArrayList<LotteryThreadState> donatorList = null;
+		/** This thread's slot in <tt>waitingOn</tt>. */
+		protected int slot;
 	}
 }
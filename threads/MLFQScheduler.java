@@ -0,0 +1,367 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept on a number of
+ * levels, each a FIFO list, and the next thread is always the first on the
+ * highest nonempty level, level 0 being the highest.
+ *
+ * <p>
+ * Each level has a quantum, a number of ticks, given in order by the
+ * comma-separated <tt>MLFQScheduler.quanta</tt>, one level per entry. A
+ * thread starts on level 0. The timer only preempts a thread once it has
+ * used its level's quantum, or when a thread on a higher level is ready, so
+ * the lower levels get longer time slices, rounded up to a whole number of
+ * timer interrupts. Whenever a thread gives up the CPU, the ticks it ran are
+ * added to what it has used on its level, and once that reaches the level's
+ * quantum, the thread moves down a level. A thread that blocks, on a
+ * semaphore, a lock, the console, or the alarm, before using up its quantum
+ * moves up a level, so interactive threads float to the top while CPU hogs
+ * sink. A thread that yields early keeps its level and what it has used, so
+ * yielding just before its quantum runs out does not help.
+ *
+ * <p>
+ * Every <tt>MLFQScheduler.boostInterval</tt> ticks, every thread goes back to
+ * level 0, so threads on the lower levels cannot starve.
+ *
+ * <p>
+ * Priorities are ignored, and so is <tt>transferPriority</tt>: a thread's
+ * level is all the priority it has.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		String quantaList = Config.getString("MLFQScheduler.quanta",
+				"500,1000,2000");
+		StringTokenizer tokens = new StringTokenizer(quantaList, ", ");
+		quanta = new int[tokens.countTokens()];
+		Lib.assertTrue(quanta.length > 0 && quanta.length <= 32,
+				"MLFQScheduler.quanta must give 1 to 32 levels");
+
+		for (int i = 0; i < quanta.length; i++) {
+			try {
+				quanta[i] = Integer.parseInt(tokens.nextToken());
+			}
+			catch (NumberFormatException e) {
+				Lib.assertNotReached("bad MLFQScheduler.quanta: " + quantaList);
+			}
+			Lib.assertTrue(quanta[i] > 0, "quanta must be positive");
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority ignored. MLFQ schedulers have no priority.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Add the ticks the current thread has run to what it has used on its
+	 * level. Whether it moves to another level is settled once it is known
+	 * whether it is ready or blocked, when <tt>KThread.runNextThread()</tt>
+	 * calls <tt>nextThread()</tt> on the ready queue, which it does right
+	 * after this.
+	 */
+	public void stopRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		MLFQThreadState ts = getThreadState(thread);
+		if (ts.running) {
+			ts.used += Machine.timer().getTime() - ts.runningSince;
+			ts.running = false;
+		}
+		stopped = ts;
+	}
+
+	/**
+	 * Start the clock on a thread that is about to run.
+	 */
+	public void startRunning(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		MLFQThreadState ts = getThreadState(thread);
+		ts.running = true;
+		ts.runningSince = Machine.timer().getTime();
+	}
+
+	/**
+	 * Let the current thread run on until it has used up its level's quantum,
+	 * unless a thread on a higher level is ready, or a boost is due.
+	 */
+	public boolean preemptOnTimer(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		MLFQThreadState ts = getThreadState(thread);
+		if (!ts.running || readyQueue == null)
+			return true;
+
+		long used = ts.used + Machine.timer().getTime() - ts.runningSince;
+		if (used >= quanta[ts.level])
+			return true;
+
+		if (ts.boost != currentBoost() || readyQueue.boost != currentBoost())
+			return true;
+
+		return (readyQueue.occupied & ((1 << ts.level) - 1)) != 0;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected MLFQThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new MLFQThreadState(thread);
+
+		return (MLFQThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return the number of boosts so far, by the clock.
+	 */
+	private long currentBoost() {
+		return Machine.timer().getTime() / boostInterval;
+	}
+
+	/**
+	 * Move a thread that has just given up the CPU to its new level.
+	 *
+	 * @param ts the thread.
+	 * @param readyQueue the ready queue, on which the thread is waiting if it
+	 * yielded rather than blocked.
+	 */
+	private void settle(MLFQThreadState ts, MLFQQueue readyQueue) {
+		int level = ts.level;
+		if (ts.boost != currentBoost()) {
+			ts.boost = currentBoost();
+			level = 0;
+		}
+		else if (ts.used >= quanta[level]) {
+			if (level < quanta.length - 1)
+				level++;
+		}
+		else if (ts.waitingOn != readyQueue) {
+			if (level > 0)
+				level--;
+		}
+		else {
+			// yielded early: keep the level and the ticks used on it
+			return;
+		}
+
+		Lib.debug(dbgMLFQ, ts.thread + " used " + ts.used + " ticks on level "
+				+ ts.level + ", now on level " + level);
+		ts.used = 0;
+
+		MLFQQueue queue = ts.waitingOn;
+		if (queue != null)
+			queue.unlink(ts);
+		ts.level = level;
+		if (queue != null)
+			queue.link(ts);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list per level, and a bitmap of the
+	 * nonempty levels.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			heads = new MLFQThreadState[quanta.length];
+			tails = new MLFQThreadState[quanta.length];
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			MLFQThreadState ts = getThreadState(thread);
+			if (ts.boost != currentBoost()) {
+				ts.boost = currentBoost();
+				ts.level = 0;
+				ts.used = 0;
+			}
+			link(ts);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (stopped != null) {
+				MLFQThreadState ts = stopped;
+				stopped = null;
+				readyQueue = this;
+				settle(ts, this);
+			}
+
+			if (boost != currentBoost())
+				boostAll();
+
+			if (occupied == 0)
+				return null;
+
+			MLFQThreadState ts = heads[Integer.numberOfTrailingZeros(occupied)];
+			unlink(ts);
+			return ts.thread;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. There is nothing
+		 * to do, since there is no priority to transfer.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < heads.length; level++) {
+				for (MLFQThreadState ts = heads[level]; ts != null;
+						ts = ts.next)
+
+					System.out.print(ts.thread + " (" + level + ") ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread to the end of level 0, in order of level,
+		 * and give it a fresh quantum.
+		 */
+		private void boostAll() {
+			boost = currentBoost();
+
+			for (int level = 1; level < heads.length; level++) {
+				while (heads[level] != null) {
+					MLFQThreadState ts = heads[level];
+					unlink(ts);
+					ts.level = 0;
+					ts.used = 0;
+					ts.boost = boost;
+					link(ts);
+				}
+			}
+		}
+
+		private void link(MLFQThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == null);
+
+			int level = ts.level;
+			ts.prev = tails[level];
+			ts.next = null;
+			if (tails[level] == null)
+				heads[level] = ts;
+			else
+				tails[level].next = ts;
+			tails[level] = ts;
+
+			occupied |= 1 << level;
+			ts.waitingOn = this;
+		}
+
+		private void unlink(MLFQThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			int level = ts.level;
+			if (ts.prev == null)
+				heads[level] = ts.next;
+			else
+				ts.prev.next = ts.next;
+			if (ts.next == null)
+				tails[level] = ts.prev;
+			else
+				ts.next.prev = ts.prev;
+
+			if (heads[level] == null)
+				occupied &= ~(1 << level);
+			ts.prev = ts.next = null;
+			ts.waitingOn = null;
+		}
+
+		/** The first and last waiting thread on each level. */
+		private MLFQThreadState[] heads, tails;
+
+		/** Bit <i>l</i> is set if a thread waits on level <i>l</i>. */
+		private int occupied = 0;
+
+		/** The boost this queue's levels last caught up with. */
+		private long boost = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and the ticks it has used
+	 * on that level.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class MLFQThreadState {
+		/**
+		 * Allocate a new <tt>MLFQThreadState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public MLFQThreadState(KThread thread) {
+			this.thread = thread;
+			boost = currentBoost();
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level the thread is on, 0 being the highest. */
+		protected int level = 0;
+
+		/** The ticks the thread has run on its level. */
+		protected long used = 0;
+
+		/** The boost this thread's level last caught up with. */
+		private long boost;
+
+		/** <tt>true</tt> if the thread has the CPU. */
+		private boolean running = false;
+
+		/** When the thread last started running. */
+		private long runningSince;
+
+		/** The queue this thread is in, if it is waiting. */
+		private MLFQQueue waitingOn = null;
+
+		/** The threads before and after this one on its level. */
+		private MLFQThreadState prev = null, next = null;
+	}
+
+	private static final char dbgMLFQ = 'q';
+
+	/** The quantum of each level, in ticks. */
+	private int[] quanta;
+
+	/** The ticks between boosts. */
+	private int boostInterval;
+
+	/**
+	 * The thread that last gave up the CPU, if its new level is not yet
+	 * settled.
+	 */
+	private MLFQThreadState stopped = null;
+
+	/**
+	 * The ready queue, the queue <tt>nextThread()</tt> is called on right
+	 * after a thread gives up the CPU, once it is known.
+	 */
+	private MLFQQueue readyQueue = null;
+}
@@ -2,11 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.PriorityBlockingQueue;
-
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -426,11 +421,24 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * The waiting threads are kept in one FIFO list per effective priority,
+	 * ordered by enqueuing time, and a bitmap records which lists are not
+	 * empty, so the next thread is the head of the list named by the bitmap's
+	 * highest set bit. A thread whose effective priority changes while it
+	 * waits is moved to its new list, behind every thread there that has
+	 * been waiting longer.
+	 * 
+	 * <p>
+	 * If the queue transfers priority, the highest effective priority among
+	 * its waiters is donated to its holder, and the queue remembers what it
+	 * donated so that it can take exactly that back when the waiters or the
+	 * holder change.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
-			priorityQueue = new PriorityBlockingQueue<ThreadState>();
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -456,12 +464,11 @@ public class PriorityScheduler extends Scheduler {
 			Lib.debug(dbgPS, "   ### DEQUE " + ts.thread + ", EP=" + ts.effectivePriority +
 					", enqueue time: " + ts.enqueuingTime);
 			
-			priorityQueue.poll();	// dequeue
+			unlink(ts);	// dequeue
 			
-			// update the efficient priority if possible.
+			// the remaining waiters now donate to this thread
 			ts.acquire(this);
 			
-			ts.currentWait = null;
 			return ts.thread;
 		}
 
@@ -472,25 +479,17 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			if (!priorityQueue.isEmpty()) {
+			if (occupied == 0)
+				return null;
+
+			ThreadState next =
+					heads[31 - Integer.numberOfLeadingZeros(occupied)];
+			if (Lib.test(dbgPS)) {
 				Lib.debug(dbgPS, "#### In pickNextThread(): next: "
-						+ priorityQueue.peek().thread);
-				/**
-				 * Refresh the queue.
-				 * XXX: This implementation is not efficient. 
-				 */
-				PriorityBlockingQueue<ThreadState> tmp = 
-						new PriorityBlockingQueue<ThreadState>();
-				while (!priorityQueue.isEmpty()) {
-					tmp.add(priorityQueue.poll());
-				}
-				priorityQueue = tmp;
+						+ next.thread);
 				print();
-				return priorityQueue.peek();
-			} else {
-				return null;
 			}
+			return next;
 		}
 
 		public void print() {
@@ -498,12 +497,72 @@ public class PriorityScheduler extends Scheduler {
 			// implement me (if you want)
 			Lib.debug(dbgPS, "/*********** Print current queue, transferPriority ? "
 						+ transferPriority);
-			for (ThreadState t : priorityQueue) {
-				Lib.debug(dbgPS, t.thread + ": P = " + t.priority + ", EP = " 
-							+ t.effectivePriority + ", enqueued @" + t.enqueuingTime);
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState t = heads[p]; t != null; t = t.nextWaiter) {
+					Lib.debug(dbgPS, t.thread + ": P = " + t.priority
+							+ ", EP = " + t.effectivePriority + ", enqueued @"
+							+ t.enqueuingTime);
+				}
 			}
 			Lib.debug(dbgPS, "**********************************************************/");
 		}
+
+		/**
+		 * Add a thread to the list for its effective priority, behind every
+		 * thread there that was enqueued no later than it. A thread that has
+		 * just started waiting goes straight to the tail. The caller must
+		 * call <tt>updateDonation()</tt> afterwards.
+		 * 
+		 * @param ts the thread, which must not already be waiting.
+		 */
+		protected void link(ThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == null);
+
+			int p = ts.effectivePriority;
+			ThreadState prev = tails[p];
+			while (prev != null && prev.enqueuingTime > ts.enqueuingTime)
+				prev = prev.prevWaiter;
+
+			ThreadState next = (prev == null) ? heads[p] : prev.nextWaiter;
+			ts.prevWaiter = prev;
+			ts.nextWaiter = next;
+			if (prev == null)
+				heads[p] = ts;
+			else
+				prev.nextWaiter = ts;
+			if (next == null)
+				tails[p] = ts;
+			else
+				next.prevWaiter = ts;
+
+			occupied |= 1 << p;
+			ts.waitingOn = this;
+		}
+
+		/**
+		 * Remove a waiting thread from its list. The caller must call
+		 * <tt>updateDonation()</tt> afterwards.
+		 * 
+		 * @param ts the thread, which must be waiting on this queue.
+		 */
+		protected void unlink(ThreadState ts) {
+			Lib.assertTrue(ts.waitingOn == this);
+
+			int p = ts.effectivePriority;
+			if (ts.prevWaiter == null)
+				heads[p] = ts.nextWaiter;
+			else
+				ts.prevWaiter.nextWaiter = ts.nextWaiter;
+			if (ts.nextWaiter == null)
+				tails[p] = ts.prevWaiter;
+			else
+				ts.nextWaiter.prevWaiter = ts.prevWaiter;
+
+			if (heads[p] == null)
+				occupied &= ~(1 << p);
+			ts.prevWaiter = ts.nextWaiter = null;
+			ts.waitingOn = null;
+		}
 		
 		/** 
 		 * Get the resource holder of this queue.
@@ -515,12 +574,56 @@ public class PriorityScheduler extends Scheduler {
 		}
 		
 		/**
-		 * Set a new resource holder of this queue.
+		 * Set a new resource holder of this queue, taking back what the queue
+		 * donated to the old holder and donating it to the new one.
 		 * 
 		 * @param holder The new holder to be set.
 		 */
 		public void setHolder(ThreadState holder) {
+			if (holder != resHolder && donation >= 0) {
+				ThreadState oldHolder = resHolder;
+				oldHolder.removeDonation(donation);
+				donation = -1;
+
+				PriorityQueue queue = oldHolder.updateEffectivePriority();
+				if (queue != null)
+					queue.updateDonation();
+			}
+
 			resHolder = holder;
+			updateDonation();
+		}
+
+		/**
+		 * Bring what this queue donates to its holder up to date, and follow
+		 * the change down the chain of holders: a holder whose effective
+		 * priority changes moves within the queue it waits on, which may in
+		 * turn change what that queue donates. The walk stops as soon as
+		 * nothing changes, so a wait or a release costs one step per holder
+		 * whose effective priority actually changes.
+		 */
+		protected void updateDonation() {
+			PriorityQueue queue = this;
+			while (queue != null) {
+				int top = -1;
+				if (queue.transferPriority && queue.resHolder != null
+						&& queue.occupied != 0)
+					top = 31 - Integer.numberOfLeadingZeros(queue.occupied);
+
+				if (top == queue.donation)
+					return;
+
+				ThreadState holder = queue.resHolder;
+				if (queue.donation >= 0)
+					holder.removeDonation(queue.donation);
+				if (top >= 0)
+					holder.addDonation(top);
+				queue.donation = top;
+
+				Lib.debug(dbgPS, "   *** " + holder.thread + " is donated "
+						+ top + ", EP = " + holder.effectivePriority);
+				queue = holder.updateEffectivePriority();
+			}
 		}
 
 		/**
@@ -529,8 +632,18 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public boolean transferPriority;
 		
-		/** The scheduling priority queue */
-		public PriorityBlockingQueue<ThreadState> priorityQueue = null;
+		/** The first and last waiting thread of each effective priority. */
+		protected ThreadState[] heads = new ThreadState[priorityMaximum + 1],
+				tails = new ThreadState[priorityMaximum + 1];
+
+		/**
+		 * Bit <i>p</i> is set if a thread of effective priority <i>p</i> waits.
+		 */
+
+		protected int occupied = 0;
+		
+		/** The priority donated to the holder, or -1 if none. */
+		protected int donation = -1;
 		
 		/** The resource (lock, semaphore, etc.) holder of this wait queue. */
 		protected ThreadState resHolder = null;
@@ -541,9 +654,15 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The priorities donated by the queues this thread holds are kept as a
+	 * count per priority, with a bitmap of the nonzero counts, so the effective
+	 * priority is the larger of the thread's own priority and the bitmap's
+	 * highest set bit.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState implements Comparable<ThreadState> {
+	protected class ThreadState {
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -552,9 +671,6 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public ThreadState(KThread thread) {
 			this.thread = thread;
-
-			doneeList = new ArrayList<ThreadState>();
-			donatorList = new ArrayList<ThreadState>();
 		}
 
 		/**
@@ -573,7 +689,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @author liqiangw
 		 */
 		public int getEffectivePriority() {
-			// implement me
 			return effectivePriority;
 		}
 
@@ -592,72 +707,56 @@ public class PriorityScheduler extends Scheduler {
 			
 			this.priority = priority;
 
-			// implement me
-			this.setEffectivePriority(priority);
+			PriorityQueue queue = updateEffectivePriority();
+			if (queue != null)
+				queue.updateDonation();
 		}
-		
+
 		/**
-		 * Set the effective priority of the associated thread to the 
-		 * specified value.
+		 * Count a priority donated by a queue this thread holds.
 		 * 
-		 * @param priority the new effective priority.
-		 * @author liqiangw
+		 * @param priority the donated priority.
 		 */
-		public void setEffectivePriority(int priority) {
-			if (priority <= priorityMaximum 
-					&& priority >= priorityMinimum) {
-				if (priority == getEffectivePriority())
-					return;
-				
-				this.effectivePriority = priority;
-			
-				if (currentWait != null 
-						&& currentWait.transferPriority) {
-					this.donate();
-				}
-			}
+		protected void addDonation(int priority) {
+			if (donations[priority]++ == 0)
+				donated |= 1 << priority;
 		}
-		
+
 		/**
-		 * Called when the current waiting thread should update the effective 
-		 * priorities of threads holding the resources. This method will
-		 * recursively update all effective priorities that are influenced
-		 * by the change of <tt>this.effectivePriority</tt>.
+		 * Take back a priority donated by a queue this thread holds.
 		 * 
-		 * It will change the effective priorities of caller's donees.
+		 * @param priority the priority that was donated.
+		 */
+		protected void removeDonation(int priority) {
+			Lib.assertTrue(donations[priority] > 0);
+			if (--donations[priority] == 0)
+				donated &= ~(1 << priority);
+		}
+
+		/**
+		 * Recompute the effective priority from the thread's own priority and
+		 * its donations, moving the thread to its new list if it is waiting.
 		 * 
-		 * @author liqiangw
+		 * @return the queue the thread is waiting on if its effective priority
+		 * changed, whose donation the caller must update, or <tt>null</tt>.
 		 */
-		protected void donate() {
-			Lib.assertTrue(currentWait != null);
-			Lib.debug(dbgPS, "   *** -> In donate() of " + this.thread 
-					          + " EP = " + this.getEffectivePriority());
-			if (this.doneeList.isEmpty())
-				return;
-			
-			for (ThreadState donee : doneeList) {
-				Lib.debug(dbgPS, "      *** donee: " + donee.thread.toString());
-			}
-			
-			for (ThreadState donee : doneeList) {
-				int ep = -1;
-				/**
-				 * Should consider the case when multiple threads wait
-				 * on one thread. 
-				 */
-				for (ThreadState donator : donee.donatorList) {
-					Lib.debug(dbgPS, "      " + donee.thread + " has donator: " + 
-							donator.thread + " EP = " + donator.effectivePriority);
-					ep = Math.max(ep, donator.getEffectivePriority());
-				}
-				donee.effectivePriority = (ep >= donee.getPriority()) 
-										 ? ep : donee.getPriority();
-				Lib.debug(dbgPS, "      -->" + donee.thread + " now has EP = " + 
-										 donee.effectivePriority);
-				
-				/** Be careful: there is a recursive call. */
-				donee.donate();
-			}
+		protected PriorityQueue updateEffectivePriority() {
+			int ep = priority;
+			if (donated != 0)
+				ep = Math.max(ep, 31 - Integer.numberOfLeadingZeros(donated));
+
+			if (ep == effectivePriority)
+				return null;
+
+			Lib.debug(dbgPS, "      -->" + thread + " now has EP = " + ep);
+
+			PriorityQueue queue = waitingOn;
+			if (queue != null)
+				queue.unlink(this);
+			effectivePriority = ep;
+			if (queue != null)
+				queue.link(this);
+			return queue;
 		}
 
 		/**
@@ -678,42 +777,14 @@ public class PriorityScheduler extends Scheduler {
 			Lib.debug(dbgPS, "### In " + this.thread.toString() + "--> waitForAccess()"
 					          + " = transport priority? " + waitQueue.transferPriority
 					          + " currentWait = " + waitQueue);
-			// implement me
 			Lib.assertTrue(Machine.interrupt().disabled());
 			Lib.assertTrue(waitQueue != null);
 			
 			enqueuingTime = Machine.timer().getTime(); // update enqueuing time
-			currentWait = waitQueue;
-			waitQueue.priorityQueue.add(this);
+			waitQueue.link(this);
 			
 			/** Donate to the resource holder of this queue. */
-			if (currentWait.transferPriority) {
-				ThreadState holder;
-				if ((holder = waitQueue.getHolder()) != null) {
-					/**
-					 * Add the holder to the doneeList whenever the holder's
-					 * effective priority needs to be promoted. 
-					 */
-					Lib.debug(dbgPS, "   ### holder: " + holder.thread);
-					if (!doneeList.contains(holder)) {
-						Lib.debug(dbgPS, "         ---> this ("+ getEffectivePriority() 
-								       + ") add " + holder.thread + " (" + holder.getEffectivePriority()
-								       + ") to doneeList");
-						doneeList.add(holder);
-						holder.donatorList.add(this);
-					} else if (doneeList.contains(holder)) {
-						Lib.debug(dbgPS, "   ### doneeList has contained " + holder.thread);
-					} else {
-						Lib.debug(dbgPS, "   ### holder: " + holder.thread + " has higher EP = "
-								+ holder.effectivePriority + " than this EP = " + this.effectivePriority);
-					}
-				} else {
-					Lib.debug(dbgPS, "holder is null");
-				}
-				this.donate();
-				Lib.debug(dbgPS, "++ After donation (wait), next thread: " 
-		                  + currentWait.pickNextThread().thread);
-			}
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -730,96 +801,15 @@ public class PriorityScheduler extends Scheduler {
 			Lib.debug(dbgPS, "### In " + this.thread.toString() + "--> acquire()"
 					           + " = transport priority? " + waitQueue.transferPriority
 					           + " currentWait = " + waitQueue);
-			// implement me
 			Lib.assertTrue(Machine.interrupt().disabled());
 			Lib.assertTrue(waitQueue != null);
 			
-			currentWait = waitQueue;
-		
 			/**
-			 * Find the thread whose effective priority should be
-			 * set back to its own priority.
-			 * 
-			 * This is the case when a thread releases a resource
-			 * and needs roll back its effective priority. 
+			 * The last holder loses what the waiters donated, and this
+			 * thread gains it.
 			 */
-			if (currentWait.transferPriority) {
-				ThreadState holder;
-				/**
-				 * If the holder of the wait queue is not null or self,
-				 * it must be the one who recently releases the 
-				 * resource, so that this thread can acquire it. 
-				 * That is how we can know who is the last holder.
-				 */
-				if ((holder = waitQueue.getHolder()) != null
-						                   && holder != this) {
-					/**
-					 * Very important step, otherwise holder.currentWait = null. 
-					 */
-					holder.currentWait = waitQueue;
-					
-					/**
-					 * Remove all the donators (from donatorList) who share the same
-					 * current wait queue with the previous resource holder.
-					 * 
-					 * We should iterate through all the donatorList of the holder
-					 * in order to handle the case when multiple threads may wait
-					 * on this lock. If it is not appropriately dealt, the effective
-					 * priority of the holder might be wrong.
-					 * 
-					 * The donators' doneeList should also be updated accordingly.
-					 */
-					Iterator<ThreadState> it = holder.donatorList.iterator();
-					while (it.hasNext()) {
-						ThreadState donator = it.next();
-						Lib.debug(dbgPS, "holder waits on: " + holder.currentWait
-								+ ", its donator waits on: " + donator.currentWait);
-						if (donator.currentWait == holder.currentWait) {
-							it.remove();
-							if (donator.doneeList.contains(holder)) {
-								donator.doneeList.remove(holder);
-							}
-						}
-					}
-					
-					/**
-					 * Re-calculate the effective priority for the
-					 * last holder (including itself). 
-					 */
-					int p = -1;
-					for (ThreadState t : holder.donatorList) {
-						if (t != this && t.currentWait != holder.currentWait) {
-							Lib.debug(dbgPS, "holder has donator: " + t.thread);
-							p = Math.max(p, t.getEffectivePriority());
-						}
-					}
-					if (p < holder.getPriority())
-						p = holder.getPriority(); // its own priority
-					/**
-					 * it will call donate() eventually.
-					 */
-					holder.setEffectivePriority(p); 
-					Lib.debug(dbgPS, holder.thread + " has new EP = " + holder.effectivePriority);
-				} 
+			if (waitQueue.transferPriority)
 				waitQueue.setHolder(this);
-			}
-		}
-		
-		/**
-		 * The comparator of ThreadState. 
-		 */
-		public int compareTo(ThreadState that) {
-			if (this.getEffectivePriority() > that.getEffectivePriority()) {
-				return -1;
-			} else if (this.getEffectivePriority() < that.getEffectivePriority()) {
-				return 1;
-			} else {
-				if (this.enqueuingTime <= that.enqueuingTime) {
-					return -1;
-				} else {
-					return 1;
-				}
-			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -834,16 +824,16 @@ public class PriorityScheduler extends Scheduler {
 		/** The time staying in the waitQueue. */
 		protected long enqueuingTime = Long.MAX_VALUE;
 		
-		/** The priority queue this thread currently wait on. */
-		protected PriorityQueue currentWait = null;
+		/** The queue this thread is in, if it is waiting. */
+		protected PriorityQueue waitingOn = null;
 		
-		/** 
-		 * The list of threads who are donated by this thread. 
-		 * Note: It only contains direct donee(s).
-		 */
-		protected ArrayList<ThreadState> doneeList = null;
+		/** The threads before and after this one in its list. */
+		protected ThreadState prevWaiter = null, nextWaiter = null;
+		
+		/** How many held queues donate each priority. */
+		protected int[] donations = new int[priorityMaximum + 1];
 		
-		/** The list of threads who once donated to this thread. */
-		protected ArrayList<ThreadState> donatorList = null;
+		/** Bit <i>p</i> is set if some held queue donates priority <i>p</i>. */
+		protected int donated = 0;
 	}
 }
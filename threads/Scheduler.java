@@ -151,4 +151,38 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called when the current thread is about to give up the CPU, whether it
+	 * is yielding, sleeping, or finishing, before the next thread is chosen.
+	 * A scheduler that charges threads for the CPU time they use can charge
+	 * this thread here. The default does nothing.
+	 * 
+	 * @param thread the current thread.
+	 */
+	public void stopRunning(KThread thread) {
+	}
+
+	/**
+	 * Called by <tt>KThread.run()</tt> just before the CPU is switched to a
+	 * thread, when the clock reads the time the thread starts running. The
+	 * default does nothing.
+	 * 
+	 * @param thread the thread about to run.
+	 */
+	public void startRunning(KThread thread) {
+	}
+
+	/**
+	 * Called by the timer interrupt handler, after it has woken any sleeping
+	 * threads that are due, to decide whether the current thread should
+	 * yield. The default always says yes, so every thread gets a time slice
+	 * of one timer interrupt.
+	 * 
+	 * @param thread the current thread.
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptOnTimer(KThread thread) {
+		return true;
+	}
 }
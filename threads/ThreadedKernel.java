@@ -91,6 +91,10 @@ public class ThreadedKernel extends Kernel {
 
 	private static LotteryScheduler dummy3 = null;
 
+	private static FairScheduler dummy8 = null;
+
+	private static MLFQScheduler dummy9 = null;
+
 	private static Condition2 dummy4 = null;
 
 	private static Communicator dummy5 = null;
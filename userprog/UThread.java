@@ -28,11 +28,47 @@ public class UThread extends KThread {
 		process.initRegisters();
 		process.restoreState();
 
-		Machine.processor().run();
+		if (Machine.numCPUs() > 1)
+			runOnSecondaryCPUs();
+		else
+			Machine.processor().run();
 
 		Lib.assertNotReached();
 	}
 
+	/**
+	 * Run the program a quantum at a time on whichever secondary CPU is free,
+	 * while the boot CPU goes on running the kernel. Between quanta the user
+	 * registers are in the boot CPU as usual, so that system calls and other
+	 * exceptions are handled the same way as on a single CPU.
+	 */
+	private void runOnSecondaryCPUs() {
+		Processor processor = Machine.processor();
+
+		processor.writeRegister(Processor.regNextPC,
+				processor.readRegister(Processor.regPC) + 4);
+
+		final Semaphore stopped = new Semaphore(0);
+		Runnable stopHandler = new Runnable() {
+			public void run() {
+				stopped.V();
+			}
+		};
+
+		while (true) {
+			Processor cpu = UserKernel.allocateCPU();
+
+			cpu.dispatch(processor, stopHandler);
+			stopped.P();
+
+			boolean exception = cpu.retire(processor);
+			UserKernel.freeCPU(cpu);
+
+			if (exception)
+				processor.deliverException();
+		}
+	}
+
 	/**
 	 * Save state before giving up the processor to another thread.
 	 */
@@ -47,6 +47,74 @@ public class UserKernel extends ThreadedKernel {
 		
 		// Initialize the PID poll.
 		pidPoll = new HashSet<Integer>();
+
+		// The secondary CPUs run user code while the boot CPU runs the kernel.
+		freeCPUs = new LinkedList<Processor>();
+		for (int i = 1; i < Machine.numCPUs(); i++)
+			freeCPUs.add(Machine.processor(i));
+		cpusAvailable = new Semaphore(freeCPUs.size());
+		cpuLock = new Lock();
+
+		checkpointFile = Config.getString("Kernel.checkpoint");
+		checkpointTicks = Config.getInteger("Kernel.checkpointTicks", 0);
+	}
+
+	/**
+	 * Take a secondary CPU to run user code on, waiting until one is free.
+	 * 
+	 * @return the CPU.
+	 */
+	public static Processor allocateCPU() {
+		cpusAvailable.P();
+
+		cpuLock.acquire();
+		Processor cpu = freeCPUs.removeFirst();
+		cpuLock.release();
+
+		return cpu;
+	}
+
+	/**
+	 * Give back a CPU taken by <tt>allocateCPU()</tt>.
+	 * 
+	 * @param cpu the CPU.
+	 */
+	public static void freeCPU(Processor cpu) {
+		cpuLock.acquire();
+		freeCPUs.add(cpu);
+		cpuLock.release();
+
+		cpusAvailable.V();
+	}
+
+	/**
+	 * Test whether a process entering the kernel should try to write the
+	 * checkpoint named by <tt>Kernel.checkpoint</tt>. One is written, once,
+	 * at the first system call made after <tt>Kernel.checkpointTicks</tt>
+	 * ticks at which the state of the kernel can be saved.
+	 * 
+	 * @return <tt>true</tt> if a checkpoint is wanted.
+	 */
+	public static boolean checkpointDue() {
+		return checkpointFile != null && !checkpointWritten
+				&& Machine.timer().getTime() >= checkpointTicks;
+	}
+
+	/**
+	 * Note that the checkpoint has been written, or that this kernel was
+	 * restored from it, so that it isn't written again.
+	 */
+	public static void checkpointTaken() {
+		checkpointWritten = true;
+	}
+
+	/**
+	 * Return the name of the checkpoint file to write.
+	 * 
+	 * @return the value of <tt>Kernel.checkpoint</tt>.
+	 */
+	public static String getCheckpointFile() {
+		return checkpointFile;
 	}
 
 	/**
@@ -113,6 +181,15 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = UserProcess.newUserProcess();
 
+		// carry on from a checkpoint instead of starting the shell
+		String restoreFile = Config.getString("Kernel.restore");
+		if (restoreFile != null) {
+			checkpointTaken();
+			process.restore(restoreFile);
+
+			KThread.currentThread().finish();
+		}
+
 		String shellProgram = Machine.getShellProgramName();
 		Lib.assertTrue(process.execute(shellProgram, new String[] {}));
 //		Lib.assertTrue(process.execute("hello.coff", new String[] {}));
@@ -125,6 +202,8 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Machine.processor().printProfile();
+
 		super.terminate();
 	}
 
@@ -149,4 +228,20 @@ public class UserKernel extends ThreadedKernel {
 	
 	/** Locker for freePages. */
 	public static Lock fpLock;
+
+	/** Secondary CPUs not running any thread. */
+	private static LinkedList<Processor> freeCPUs = null;
+
+	/** Counts the free secondary CPUs. */
+	private static Semaphore cpusAvailable;
+
+	/** Locker for freeCPUs. */
+	private static Lock cpuLock;
+
+	/** The checkpoint to write, and when. */
+	private static String checkpointFile = null;
+
+	private static int checkpointTicks;
+
+	private static boolean checkpointWritten = false;
 }
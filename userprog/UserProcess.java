@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -130,6 +135,203 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Carry on running the process saved in the specified checkpoint, in place
+	 * of a new program. The machine is restored first, and then this process
+	 * takes over the page table, open files and children of the saved one,
+	 * and forks a thread that resumes at the system call during which the
+	 * checkpoint was written.
+	 * 
+	 * @param fileName the name of the checkpoint file.
+	 */
+	public void restore(String fileName) {
+		boolean intStatus = Machine.interrupt().disable();
+		byte[] state = Machine.restore(fileName);
+		Machine.interrupt().restore(intStatus);
+
+		try {
+			readCheckpoint(new DataInputStream(
+					new ByteArrayInputStream(state)));
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("bad kernel state in " + fileName + ": " + e);
+		}
+
+		// the registers saved at the system call are back in the processor
+		restoredRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			restoredRegisters[i] = Machine.processor().readRegister(i);
+
+		thread = new UThread(this);
+		thread.setName(programName).fork();
+
+		Lib.debug(dbgProcess, "restore(): pid = " + pid + " running "
+				+ programName);
+	}
+
+	/**
+	 * Write a checkpoint of the machine and this process, if this is the only
+	 * process and its state can be saved. Called on entry to a system call,
+	 * before the call is handled, so that the restored process makes the call
+	 * again.
+	 */
+	private void checkpoint() {
+		pidLock.acquire();
+		boolean alone = (totalProcess == 1);
+		pidLock.release();
+
+		if (!alone)
+			return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			if (!writeCheckpoint(new DataOutputStream(bytes)))
+				return;
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		if (Machine.checkpoint(UserKernel.getCheckpointFile(),
+				bytes.toByteArray())) {
+			UserKernel.checkpointTaken();
+			Lib.debug(dbgProcess, "checkpoint written, pid = " + pid);
+		}
+	}
+
+	/**
+	 * Save the state of this process that isn't in the machine: its program,
+	 * which console files it has open, its memory (see
+	 * <tt>writeMemoryCheckpoint()</tt>) and the exit status of the children it
+	 * hasn't joined yet.
+	 * 
+	 * @param out where to write the state.
+	 * @return <tt>false</tt> if this process has files other than the console
+	 * open, which can't be saved.
+	 */
+	protected boolean writeCheckpoint(DataOutputStream out) throws IOException {
+		for (int i = 0; i < MAX_FILES; i++) {
+			if (openedFiles[i] != null && openedFiles[i] != stdin
+					&& openedFiles[i] != stdout) {
+				Lib.debug(dbgProcess, "can't checkpoint, file " + i
+						+ " is open");
+
+				return false;
+			}
+		}
+
+		out.writeUTF(programName);
+		out.writeInt(pid);
+		out.writeInt(pidAccumulated);
+
+		for (int i = 0; i < MAX_FILES; i++)
+			out.writeByte(openedFiles[i] == stdin ? 0
+					: openedFiles[i] == stdout ? 1 : -1);
+
+		writeMemoryCheckpoint(out);
+
+		joinLock.acquire();
+		out.writeInt(endedChildren.size());
+		for (Integer childPID : endedChildren.keySet()) {
+			out.writeInt(childPID);
+			out.writeInt(endedChildren.get(childPID));
+		}
+		joinLock.release();
+
+		return true;
+	}
+
+	/**
+	 * Load the state saved by <tt>writeCheckpoint()</tt> into this process.
+	 * 
+	 * @param in where to read the state.
+	 */
+	protected void readCheckpoint(DataInputStream in) throws IOException {
+		programName = in.readUTF();
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(programName,
+				false);
+		if (executable == null)
+			throw new IOException("can't open " + programName);
+		coff = new Coff(executable);
+
+		pidLock.acquire();
+		pid = in.readInt();
+		pidAccumulated = in.readInt();
+		pidLock.release();
+
+		for (int i = 0; i < MAX_FILES; i++) {
+			int console = in.readByte();
+			openedFiles[i] = console == 0 ? stdin : console == 1 ? stdout
+					: null;
+		}
+
+		readMemoryCheckpoint(in);
+
+		// the children themselves have exited, only their status is left
+		for (int i = in.readInt(); i > 0; i--) {
+			int childPID = in.readInt();
+			children.put(childPID, null);
+			endedChildren.put(childPID, in.readInt());
+		}
+	}
+
+	/**
+	 * Save the page table of this process to a checkpoint.
+	 * 
+	 * @param out where to write the state.
+	 */
+	protected void writeMemoryCheckpoint(DataOutputStream out)
+			throws IOException {
+		out.writeInt(pageTable.length);
+		for (int i = 0; i < pageTable.length; i++)
+			writeEntry(out, pageTable[i]);
+	}
+
+	/**
+	 * Load the page table saved by <tt>writeMemoryCheckpoint()</tt>, and take
+	 * the pages it uses off the free list.
+	 * 
+	 * @param in where to read the state.
+	 */
+	protected void readMemoryCheckpoint(DataInputStream in) throws IOException {
+		numPages = in.readInt();
+		pageTable = new TranslationEntry[numPages];
+
+		UserKernel.fpLock.acquire();
+		for (int i = 0; i < numPages; i++) {
+			pageTable[i] = readEntry(in);
+			virtualToTransEntry.put(pageTable[i].vpn, pageTable[i]);
+
+			Lib.assertTrue(UserKernel.freePages.remove(
+					Integer.valueOf(pageTable[i].ppn)));
+		}
+		UserKernel.fpLock.release();
+	}
+
+	/**
+	 * Write a translation entry to a checkpoint.
+	 */
+	protected static void writeEntry(DataOutputStream out,
+			TranslationEntry entry) throws IOException {
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeBoolean(entry.valid);
+		out.writeBoolean(entry.readOnly);
+		out.writeBoolean(entry.used);
+		out.writeBoolean(entry.dirty);
+	}
+
+	/**
+	 * Read a translation entry written by <tt>writeEntry()</tt>.
+	 */
+	protected static TranslationEntry readEntry(DataInputStream in)
+			throws IOException {
+		return new TranslationEntry(in.readInt(), in.readInt(),
+				in.readBoolean(), in.readBoolean(), in.readBoolean(),
+				in.readBoolean());
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -206,7 +408,7 @@ public class UserProcess {
 				+ data.length + ", beginning offset=" + offset + ", length=" + length
 				+ " current pid = " + getPID());
 
-		byte[] physicalMemory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int amount = 0;
 		
 		if (vaddr < 0)
@@ -252,7 +454,7 @@ public class UserProcess {
 			
 			Lib.debug(dbgProcess, "\t *PhyMem Addr=" + srcPos + " data index=" + (offset + amount) 
 					+ " count=" + count);
-			System.arraycopy(physicalMemory, srcPos, data, offset + amount, count);
+			processor.readPhysicalMemory(srcPos, data, offset + amount, count);
 
 //            // TODO: debug
 //            String str = new String(data, 0, count);
@@ -304,7 +506,7 @@ public class UserProcess {
 //				+ data.length + ", beginning offset=" + offset + ", length=" + length
 //				+ " current pid = " + getPID());
 
-		byte[] physicalMemory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int amount = 0;
 		
 		if (vaddr < 0) 
@@ -343,7 +545,7 @@ public class UserProcess {
 			}
 			
 			int dstPos = Processor.makeAddress(virtualToTransEntry.get(i).ppn, off);
-			System.arraycopy(data, offset + amount, physicalMemory, dstPos, count);
+			processor.writePhysicalMemory(dstPos, data, offset + amount, count);
 			
 			amount += count;
 		}
@@ -365,6 +567,8 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+		programName = name;
+
 		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
@@ -541,6 +745,15 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a restored process carries on where the checkpoint was written
+		if (restoredRegisters != null) {
+			for (int i = 0; i < processor.numUserRegisters; i++)
+				processor.writeRegister(i, restoredRegisters[i]);
+
+			restoredRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -1022,7 +1235,9 @@ public class UserProcess {
 		Collection<UserProcess> coll = children.values();
 		List<UserProcess> exitchildren = new ArrayList<UserProcess>(coll);
 		for(int m = 0; m < exitchildren.size(); m++) {
-			exitchildren.get(m).parent = null; // problematic
+			// children restored from a checkpoint have already exited
+			if (exitchildren.get(m) != null)
+				exitchildren.get(m).parent = null; // problematic
 		}
 		Lib.debug(dbgProcess, "\t(handleExit(curPID = " + this.getPID() 
 				+ ")) Children's parent reset");
@@ -1066,6 +1281,24 @@ public class UserProcess {
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
 			syscallUnlink = 9;
 
+	private static final String[] syscallNames = { "halt", "exit", "exec",
+			"join", "creat", "open", "read", "write", "close", "unlink" };
+
+	/** How many times each syscall was made, and how long they took. */
+	private static Metrics.Counter[] syscallCounts =
+			new Metrics.Counter[syscallNames.length];
+
+	private static Metrics.Histogram syscallTicks = Machine.metrics()
+			.histogram("syscall_ticks",
+					"ticks to handle a syscall that returned");
+
+	static {
+		for (int i = 0; i < syscallNames.length; i++)
+			syscallCounts[i] = Machine.metrics().counter(
+					"syscall_" + syscallNames[i],
+					syscallNames[i] + " syscalls");
+	}
+
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
 	 * <i>syscall</i> argument identifies which syscall the user executed:
@@ -1193,11 +1426,20 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
-			int result = handleSyscall(processor.readRegister(Processor.regV0),
+			if (UserKernel.checkpointDue())
+				checkpoint();
+
+			int syscall = processor.readRegister(Processor.regV0);
+			if (syscall >= 0 && syscall < syscallCounts.length)
+				syscallCounts[syscall].increment();
+			long startTime = Machine.timer().getTime();
+
+			int result = handleSyscall(syscall,
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3));
+			syscallTicks.record(Machine.timer().getTime() - startTime);
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
@@ -1212,6 +1454,12 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file containing the program. */
+	protected String programName;
+
+	/** The registers to start with, if this process was restored. */
+	private int[] restoredRegisters = null;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -2,6 +2,8 @@ package nachos.vm;
 
 import nachos.machine.Interrupt;
 import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Metrics;
 import nachos.machine.TranslationEntry;
 import nachos.threads.Lock;
 
@@ -24,6 +26,13 @@ public class PageTable {
     private PageTable() {
         virtualToEntry = new HashMap<VP, PIDEntry>();
         physicalToEntry = new HashMap<Integer, PIDEntry>();
+
+        Metrics metrics = Machine.metrics();
+        residentPages = metrics.gauge("vm_resident_pages",
+                "physical pages holding a virtual page");
+        victims = metrics.counter("vm_victims", "pages chosen for eviction");
+        victimScan = metrics.histogram("vm_victim_scan",
+                "pages the clock looked at to choose a victim");
     }
 
     public void iterateVirtualTable() {
@@ -133,6 +142,7 @@ public class PageTable {
         Lib.debug(dbgPT, "#In setPhysicalToEntry(): ppn = " + ppn);
 //        pageLock.acquire();
         physicalToEntry.put(ppn, entry);
+        residentPages.set(physicalToEntry.size());
 //        pageLock.release();
     }
 
@@ -152,7 +162,9 @@ public class PageTable {
 //        pageLock.acquire();
         if (physicalToEntry.containsKey(ppn)) {
             Lib.debug(dbgPT, "\tContains key...");
-            return physicalToEntry.remove(ppn);
+            PIDEntry ret = physicalToEntry.remove(ppn);
+            residentPages.set(physicalToEntry.size());
+            return ret;
         }
 //        pageLock.release();
         return null;
@@ -205,6 +217,7 @@ public class PageTable {
     public PIDEntry victimize() {
         Lib.debug(dbgPT, "#In victimize()");
         // TODO: clock algorithm
+        int scanned = 0;
         while (true) {
             Iterator<Integer> it = physicalToEntry.keySet().iterator();
 
@@ -223,6 +236,7 @@ public class PageTable {
                 TranslationEntry te = pe.getEntry();
 
                 Lib.assertTrue(ppn == pe.getEntry().ppn);
+                scanned++;
                 if (te.used) { // give you another chance
                     te.used = false;
                     pe.setEntry(te);
@@ -235,6 +249,8 @@ public class PageTable {
 //                    Lib.assertTrue(!getEntryFromVirtual(vpn, pid).getEntry().used);
                 } else { // now you are dead...
                     Lib.debug(dbgVM, "\t#(vic)Choose victim " + pe);
+                    victims.increment();
+                    victimScan.record(scanned);
                     return pe;
                 }
             }
@@ -266,6 +282,12 @@ public class PageTable {
     /** Inverted core map <paddr, <pid, entry>> */
     private HashMap<Integer, PIDEntry> physicalToEntry = null;
 
+    private Metrics.Gauge residentPages;
+
+    private Metrics.Counter victims;
+
+    private Metrics.Histogram victimScan;
+
     /** Memory lock */
     private Lock pageLock = new Lock();
 
@@ -1,6 +1,8 @@
 package nachos.vm;
 
 import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Metrics;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
@@ -28,6 +30,15 @@ public class SwapFile {
         entryMap = new HashMap<VP, PIDEntry>();
         freeSlots = new LinkedList<Integer>();
         swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+
+        Metrics metrics = Machine.metrics();
+        pageIns = metrics.counter("vm_swap_reads", "pages read from swap");
+        pageOuts = metrics.counter("vm_swap_writes", "pages written to swap");
+        swapPages = metrics.gauge("vm_swap_pages", "pages in use in swap");
+        pageInTicks = metrics.histogram("vm_swap_read_ticks",
+                "ticks to read a page from swap");
+        pageOutTicks = metrics.histogram("vm_swap_write_ticks",
+                "ticks to write a page to swap");
     }
 
     /**
@@ -74,6 +85,7 @@ public class SwapFile {
         }
 
         VP targetVP = new VP(vpn, pid);
+        long startTime = Machine.timer().getTime();
 
         swapLock.acquire();
         if (indexMap.containsKey(targetVP))
@@ -85,6 +97,9 @@ public class SwapFile {
                     pid + ", vpn = " + vpn + ", index = " + pageIndex +
                     ", byteRead = " + byteRead);
 
+            pageIns.increment();
+            pageInTicks.record(Machine.timer().getTime() - startTime);
+
             swapLock.release();
             return byteRead;
         }
@@ -113,6 +128,7 @@ public class SwapFile {
         }
 
         VP targetVP = new VP(vpn, pid);
+        long startTime = Machine.timer().getTime();
 
         swapLock.acquire();
         if (indexMap.containsKey(targetVP)) {
@@ -123,6 +139,9 @@ public class SwapFile {
             Lib.debug(dbgVM, "@@@ In writePage(): update swap page: pid = " +
                             pid + ", vpn = " + vpn + ", index = " + pageIndex);
 
+            pageOuts.increment();
+            pageOutTicks.record(Machine.timer().getTime() - startTime);
+
             swapLock.release();
             return byteWritten;
         } else {
@@ -138,14 +157,45 @@ public class SwapFile {
              */
             indexMap.put(targetVP, pageIndex);
             entryMap.put(targetVP, PageTable.getInstance().getEntryFromVirtual(vpn, pid));
+            swapPages.set(indexMap.size());
 
             int byteWritten = swapFile.write(pageIndex * pageSize, buf, offset, pageSize);
 
+            pageOuts.increment();
+            pageOutTicks.record(Machine.timer().getTime() - startTime);
+
             swapLock.release();
             return byteWritten;
         }
     }
 
+    /**
+     * Put back a page saved in a checkpoint, along with the translation
+     * entry it had when it was swapped out.
+     *
+     * @param buf - the contents of the page.
+     * @param vpn - the virtual page number.
+     * @param pid - the associated process ID.
+     * @param entry - the entry to remember for the page.
+     */
+    public void restorePage(byte[] buf, int vpn, int pid, PIDEntry entry) {
+        VP targetVP = new VP(vpn, pid);
+
+        swapLock.acquire();
+        Lib.assertTrue(!indexMap.containsKey(targetVP));
+
+        int pageIndex = allocPage();
+        indexMap.put(targetVP, pageIndex);
+        entryMap.put(targetVP, entry);
+        swapPages.set(indexMap.size());
+
+        int byteWritten = swapFile.write(pageIndex * pageSize, buf, 0,
+                pageSize);
+
+        Lib.assertTrue(byteWritten == pageSize);
+        swapLock.release();
+    }
+
     /**
      * Remove a page in swap.
      * It is used when an program exits.
@@ -164,6 +214,7 @@ public class SwapFile {
             entryMap.remove(targetVP);
 
             freeSlots.add(freeIndex);
+            swapPages.set(indexMap.size());
 
             Lib.debug(dbgVM, "@@@@ In removePage(): delete vpn = " + vpn
                     + ", pid = " + pid + ", index = " + freeIndex);
@@ -238,6 +289,12 @@ public class SwapFile {
     /** Swap file lock */
     private Lock swapLock = new Lock();
 
+    private Metrics.Counter pageIns, pageOuts;
+
+    private Metrics.Gauge swapPages;
+
+    private Metrics.Histogram pageInTicks, pageOutTicks;
+
     private static final int pageSize = Processor.pageSize;
 
     private static final char dbgVM = 'v';
@@ -5,6 +5,9 @@ import nachos.machine.Processor;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 
 
@@ -97,16 +100,10 @@ public class VMProcess extends UserProcess {
      */
     private int findEntryFromTLB(int vpn) {
 //        Lib.debug(dbgVM, "In findEntryFromTLB: vpn = " + vpn);
-        int size = Machine.processor().getTLBSize();
-
-        for (int i = 0; i < size; i++) {
-            TranslationEntry te = Machine.processor().readTLBEntry(i);
-
-            // find the entry in TLB
-            if (te != null && te.valid && te.vpn == vpn) {
-//                Lib.debug(dbgVM, "\tFind index:  " + i);
-                return i;
-            }
+        int index = Machine.processor().findTLBEntry(vpn);
+        if (index != -1) {
+//            Lib.debug(dbgVM, "\tFind index:  " + index);
+            return index;
         }
 
         Lib.debug(dbgVM, "\tfindEntryFromTLB(): Cannot find entry slot: vpn = " + vpn
@@ -127,7 +124,7 @@ public class VMProcess extends UserProcess {
                 + data.length + ", beginning offset=" + offset + ", length=" + length
                 + " current pid = " + getRunningPID());
 
-        byte[] physicalMemory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
         int amount = 0;
 
         if (vaddr < 0)
@@ -177,7 +174,7 @@ public class VMProcess extends UserProcess {
 
             Lib.debug(dbgProcess, "\t(ReadVM) *PhyMem Addr=" + srcPos + " data index=" + (offset + amount)
                     + " count=" + count);
-            System.arraycopy(physicalMemory, srcPos, data, offset + amount, count);
+            processor.readPhysicalMemory(srcPos, data, offset + amount, count);
 
             // TODO: debug
             String str = new String(data, 0, count);
@@ -216,7 +213,7 @@ public class VMProcess extends UserProcess {
 //				+ data.length + ", beginning offset=" + offset + ", length=" + length
 //				+ " current pid = " + getRunningPID());
 
-        byte[] physicalMemory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
         int amount = 0;
 
         if (vaddr < 0)
@@ -255,7 +252,7 @@ public class VMProcess extends UserProcess {
                 Lib.assertTrue(pe != null);
                 int ppn = pe.getEntry().ppn;
                 int dstPos = Processor.makeAddress(ppn, fromOffset);
-                System.arraycopy(data, offset, physicalMemory, dstPos, count);
+                processor.writePhysicalMemory(dstPos, data, offset, count);
 
                 Lib.debug(dbgProcess, "\t(WriteVM)+ Write argument to vpn = "
                                        + fromPage + ", offset = " + fromOffset
@@ -310,7 +307,9 @@ public class VMProcess extends UserProcess {
                 }
 
                 int dstPos = Processor.makeAddress(ppn, off);
-                System.arraycopy(data, offset + amount, physicalMemory, dstPos, count);
+                processor.writePhysicalMemory(dstPos, data, offset + amount,
+                        count);
+
 
                 amount += count;
             }
@@ -475,8 +474,6 @@ public class VMProcess extends UserProcess {
         Lib.debug(dbgVM, "--- In handleTLBMiss(): vaddr = " + vaddr + " vpn = "
                    + Processor.pageFromAddress(vaddr) + ", pid = " + getRunningPID());
         int vpn = Processor.pageFromAddress(vaddr);
-        int sizeTLB = Machine.processor().getTLBSize();
-        int invalidIndex = -1;
         PIDEntry pe = PageTable.getInstance().getEntryFromVirtual(vpn, getRunningPID());
 
         // TODO: debug use
@@ -494,30 +491,18 @@ public class VMProcess extends UserProcess {
         }
         Lib.assertTrue(pe != null && pe.getEntry().valid);
 
-        // find an invalid entry to victimize if possible
-        for (int i = 0; i < sizeTLB; i++)
-        {
-            // get entry in TLB
-            TranslationEntry te = Machine.processor().readTLBEntry(i);
-
-            // check if entry is invalid
-            if (te == null || !te.valid)
-            {
-                invalidIndex = i;
-                break;
-            }
-        }
+        // the processor suggests an invalid entry in the set of this page,
+        // or else the least recently used one
+        int invalidIndex = Machine.processor().getTLBVictim(vpn);
         Lib.debug(dbgVM, "\t(handleTLBMiss) Choose TLB index: " + invalidIndex);
 
-        // all entries in TLB were valid, choose randomly to replace
+        // write a valid victim entry back to page table before replacement
         // note that we do no need to write back the invalid entry to page table
-        if (invalidIndex == -1)
-        {
-            invalidIndex = randomlyVictimizeTLB();
-            Lib.debug(dbgVM, "\t(handleTLBMiss) Victimize TLB index: " + invalidIndex);
+        TranslationEntry tmpEntry =
+                Machine.processor().readTLBEntry(invalidIndex);
 
-            // write the victim entry back to page table before replacement
-            TranslationEntry tmpEntry = Machine.processor().readTLBEntry(invalidIndex);
+        if (tmpEntry.valid)
+        {
             Lib.debug(dbgVM, "\t(handleTLBMiss) Victimize TLB : vpn = " + tmpEntry.vpn +
                                 ", ppn = " + tmpEntry.ppn);
 
@@ -532,13 +517,6 @@ public class VMProcess extends UserProcess {
         return invalidIndex;
     }
 
-    /**
-     * Randomly choose a victim TLB entry to be replaced.
-     */
-    private int randomlyVictimizeTLB() {
-        return Lib.random(Machine.processor().getTLBSize());
-    }
-
     /**
      * Handle page fault. Note that this function can only be
      * called when <tt>handleTLBMiss()</tt> fails, not directly
@@ -610,14 +588,13 @@ public class VMProcess extends UserProcess {
 //            pe = new PIDEntry(getRunningPID(), te);
         } else {
             int paddr = Processor.makeAddress(ppn, 0);
-            byte[] physicalMemory = Machine.processor().getMemory();
             byte[] buf = new byte[pageSize];
             if (sf.readPage(buf, 0, vpn, pid) != pageSize) {
                 Lib.debug(dbgVM, "\tswapIn(): Reading page from swap failed!");
                 return false;
             }
 
-            System.arraycopy(buf, 0, physicalMemory, paddr, pageSize);
+            Machine.processor().writePhysicalMemory(paddr, buf, 0, pageSize);
 
             pe = sf.findEntryInSwap(vpn, pid);
             Lib.assertTrue(pe != null && pe.getEntry() != null);
@@ -666,9 +643,7 @@ public class VMProcess extends UserProcess {
             int paddr = Processor.makeAddress(ppn, 0);
 
             byte[] buf = new byte[pageSize];
-            byte[] physicalMemory = Machine.processor().getMemory();
-
-            System.arraycopy(physicalMemory, paddr, buf, 0, pageSize);
+            Machine.processor().readPhysicalMemory(paddr, buf, 0, pageSize);
 
             if (SwapFile.getInstance().writePage(buf, 0, vpn, pid) != pageSize) {
                 Lib.debug(dbgVM, "\tswapOut(): copy physical page failed");
@@ -721,6 +696,98 @@ public class VMProcess extends UserProcess {
         return victim;
     }
 
+    /**
+     * Save where each page of this process is: in memory, in the swap file
+     * along with its contents, or still only in the executable.
+     */
+    @Override
+    protected void writeMemoryCheckpoint(DataOutputStream out)
+            throws IOException {
+        Processor proc = Machine.processor();
+        PageTable pt = PageTable.getInstance();
+        SwapFile swap = SwapFile.getInstance();
+        int pid = getOwnPID();
+
+        // the TLB knows which pages have been used and written since the
+        // page table was last told
+        for (int i = 0; i < proc.getTLBSize(); i++) {
+            TranslationEntry entry = proc.readTLBEntry(i);
+            if (entry.valid)
+                pt.set(entry.vpn, pid, entry);
+        }
+
+        out.writeInt(numPages);
+        out.writeBoolean(isArgsLoaded);
+
+        byte[] page = new byte[pageSize];
+
+        out.writeInt(secMap.size());
+        for (Integer vpn : secMap.keySet()) {
+            SecInfo info = secMap.get(vpn);
+            out.writeInt(vpn);
+            out.writeInt(info.spn);
+            out.writeInt(info.ipn);
+            out.writeBoolean(info.readOnly);
+            out.writeBoolean(info.loaded);
+
+            PIDEntry resident = pt.getEntryFromVirtual(vpn, pid);
+            out.writeBoolean(resident != null);
+            if (resident != null)
+                writeEntry(out, resident.getEntry());
+
+            PIDEntry swapped = swap.findEntryInSwap(vpn, pid);
+            out.writeBoolean(swapped != null);
+            if (swapped != null) {
+                writeEntry(out, swapped.getEntry());
+                Lib.assertTrue(swap.readPage(page, 0, vpn, pid) == pageSize);
+                out.write(page);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the page table entries and swap pages of this process from a
+     * checkpoint.
+     */
+    @Override
+    protected void readMemoryCheckpoint(DataInputStream in)
+            throws IOException {
+        PageTable pt = PageTable.getInstance();
+        int pid = getOwnPID();
+
+        numPages = in.readInt();
+        isArgsLoaded = in.readBoolean();
+
+        byte[] page = new byte[pageSize];
+
+        for (int i = in.readInt(); i > 0; i--) {
+            int vpn = in.readInt();
+            secMap.put(vpn, new SecInfo(in.readInt(), in.readInt(),
+                    in.readBoolean(), in.readBoolean()));
+
+            if (in.readBoolean()) {
+                TranslationEntry entry = readEntry(in);
+                pt.set(vpn, pid, entry);
+
+                UserKernel.fpLock.acquire();
+                Lib.assertTrue(UserKernel.freePages.remove(
+                        Integer.valueOf(entry.ppn)));
+                UserKernel.fpLock.release();
+            }
+
+            if (in.readBoolean()) {
+                PIDEntry entry = new PIDEntry(pid, readEntry(in));
+                in.readFully(page);
+                SwapFile.getInstance().restorePage(page, vpn, pid, entry);
+            }
+        }
+
+        // the restored TLB goes back in when this process first runs
+        Processor proc = Machine.processor();
+        for (int i = 0; i < proc.getTLBSize(); i++)
+            tlbBackUp[i] = proc.readTLBEntry(i);
+    }
+
     /**
      * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
      * . The <i>cause</i> argument identifies which exception occurred; see the